@@ -14,6 +14,12 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot be
  * done in the receive interrupt handler because each queue (implemented with a
  * <tt>SynchList</tt>) is protected by a lock.
+ * 
+ * <p>
+ * Each mailbox holds at most <tt>PostOffice.mailboxCapacity</tt> messages.
+ * Mail for a full mailbox is dropped, like a packet lost on the network, so
+ * that a flood of packets to one port can neither use unbounded memory nor
+ * hold up delivery to the other ports.
  */
 public class PostOffice {
 	/**
@@ -22,13 +28,16 @@ public class PostOffice {
 	 * "postal worker" thread.
 	 */
 	public PostOffice() {
-		messageReceived = new Semaphore(0);
-		messageSent = new Semaphore(0);
-		sendLock = new Lock();
+		messageReceived = new Semaphore(0, "PostOffice.messageReceived");
+		messageSent = new Semaphore(0, "PostOffice.messageSent");
+		sendLock = new Lock("PostOffice.sendLock");
+
+		int mailboxCapacity = Config.getInteger("PostOffice.mailboxCapacity",
+				32);
 
 		queues = new SynchList[MailMessage.portLimit];
 		for (int i = 0; i < queues.length; i++)
-			queues[i] = new SynchList();
+			queues[i] = new SynchList(mailboxCapacity);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -94,7 +103,11 @@ public class PostOffice {
 						+ ": " + mail);
 
 			// atomically add message to the mailbox and wake a waiting thread
-			queues[mail.dstPort].add(mail);
+			if (!queues[mail.dstPort].tryAdd(mail)) {
+				numDropped++;
+				Lib.debug(dbgNet, "mailbox " + mail.dstPort
+						+ " full, dropped mail (" + numDropped + " so far)");
+			}
 		}
 	}
 
@@ -138,5 +151,7 @@ public class PostOffice {
 
 	private Lock sendLock;
 
+	private int numDropped = 0;
+
 	private static final char dbgNet = 'n';
 }
@@ -0,0 +1,64 @@
+#include "syscall.h"
+
+int bufnum = 4*1024 / sizeof(int);
+int buf[4*1024/sizeof(int)];
+
+/* Return 0 if buf holds i*scale at every index i. */
+int check_buf(int scale) {
+	int i;
+	for(i = 0; i < bufnum; i++) {
+		if(buf[i] != i*scale)
+			return i + 1;
+	}
+	return 0;
+}
+
+void fill_buf(int scale) {
+	int i;
+	for(i = 0; i < bufnum; i++)
+		buf[i] = i*scale;
+}
+
+int main(int argc, char* argv[]) {
+	int local = 1;
+	int pid, r, status = 0;
+
+	fill_buf(1);
+
+	printf("forking...\n");
+	pid = fork();
+	if(pid < 0) {
+		printf("...failed (pid = %d)\n", pid);
+		exit(-1);
+	}
+
+	if(pid == 0) {
+		/* the parent's writes after the fork must not show up here */
+		if(check_buf(1) != 0 || local != 1)
+			exit(-2);
+		fill_buf(3);
+		local = 3;
+		if(check_buf(3) != 0 || local != 3)
+			exit(-3);
+		exit(7);
+	}
+
+	fill_buf(2);
+	local = 2;
+
+	printf("joining %d...\n", pid);
+	r = join(pid, &status);
+	if(r != 1 || status != 7) {
+		printf("...failed (r = %d, status from child = %d)\n", r, status);
+		exit(-4);
+	}
+
+	/* nor the child's writes here */
+	if(check_buf(2) != 0 || local != 2) {
+		printf("...failed (parent's memory changed)\n");
+		exit(-5);
+	}
+
+	printf("...passed\n");
+	return 0;
+}
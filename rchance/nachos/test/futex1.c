@@ -0,0 +1,48 @@
+#include "syscall.h"
+#include "stdlib.h"
+
+int word = 0;
+
+int waiter(void *arg) {
+	futex_wait_while(&word, 0);
+	return word;
+}
+
+int main(int argc, char* argv[]) {
+	int tid, status = 0;
+
+	printf("futex_wait on a word that changed...\n");
+	if(futex_wait(&word, 1) != -1) {
+		printf("...failed\n");
+		exit(-1);
+	}
+
+	printf("futex_wait and futex_wake on bad addresses...\n");
+	if(futex_wait((int*) 2, 0) != -1 || futex_wake((int*) 2, 1) != -1
+			|| futex_wake((int*) 0x7FFFFFF0, 1) != -1) {
+		printf("...failed\n");
+		exit(-2);
+	}
+
+	printf("futex_wake with nobody waiting...\n");
+	if(futex_wake(&word, 1) != 0) {
+		printf("...failed\n");
+		exit(-3);
+	}
+
+	printf("waking a waiting thread...\n");
+	tid = thread_create(waiter, 0);
+	if(tid < 0) {
+		printf("...failed (tid = %d)\n", tid);
+		exit(-4);
+	}
+	word = 1;
+	futex_wake_all(&word);
+	if(thread_join(tid, &status) != 1 || status != 1) {
+		printf("...failed (status = %d)\n", status);
+		exit(-5);
+	}
+
+	printf("...passed\n");
+	return 0;
+}
@@ -1 +1,21 @@
 #include "stdlib.h"
+
+/* Block for as long as the word at addr holds value. */
+void futex_wait_while(int *addr, int value) {
+  while (*(volatile int *) addr == value)
+    futex_wait(addr, value);
+}
+
+/* Wake every thread blocked in futex_wait() on the word at addr. */
+int futex_wake_all(int *addr) {
+  return futex_wake(addr, 0x7FFFFFFF);
+}
+
+/* The first function run by a thread made by thread_create(). */
+static void thread_start(int (*func)(void *), void *arg) {
+  thread_exit(func(arg));
+}
+
+int thread_create(int (*func)(void *), void *arg) {
+  return __thread_create((void (*)()) thread_start, (int) func, (int) arg);
+}
@@ -34,4 +34,7 @@ int strncmp(const char *a, const char *b, int n);
 
 int atoi(const char *s);
 
+void futex_wait_while(int *addr, int value);
+int futex_wake_all(int *addr);
+
 #endif // STDLIB_H
@@ -25,6 +25,12 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallThreadCreate	15
+#define syscallThreadJoin	16
+#define syscallThreadExit	17
+#define syscallFork		18
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -246,6 +252,72 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Atomically check that the word at addr still holds expected, and if so,
+ * block until another thread calls futex_wake() on the same word. Threads
+ * meet on the physical word, so threads in different processes that share
+ * the page also wake each other.
+ *
+ * futex_wait() may return without anything having changed, so callers should
+ * recheck the word in a loop.
+ *
+ * Returns 0 after being woken, or -1 if the word did not hold expected or
+ * addr is not a valid, word-aligned address.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake at most count threads blocked in futex_wait() on the word at addr.
+ *
+ * Returns the number of threads woken, or -1 if addr is not a valid,
+ * word-aligned address.
+ */
+int futex_wake(int *addr, int count);
+
+/**
+ * Start a new thread in the current process, running func(arg) on its own
+ * stack. The thread shares the process's memory and open files. When func
+ * returns, the thread exits with func's return value as its status.
+ *
+ * thread_create() is implemented in stdlib.c on top of __thread_create(),
+ * which starts the new thread at start with arg0 and arg1 as its arguments.
+ *
+ * Returns the new thread's ID, or -1 if the process already has too many
+ * threads or there is not enough memory for another stack.
+ */
+int thread_create(int (*func)(void *), void *arg);
+int __thread_create(void (*start)(), int arg0, int arg1);
+
+/**
+ * Wait for the thread with the given ID, in the current process, to exit. If
+ * status is not null, the thread's exit status is stored there. Each thread
+ * can be joined at most once, and a thread cannot join itself.
+ *
+ * Returns 1 if the thread exited, or -1 if tid is not a thread of this process
+ * that can be joined.
+ */
+int thread_join(int tid, int *status);
+
+/**
+ * Terminate the current thread. If it is the last thread in the process, the
+ * process exits with the given status, as if exit() had been called. Calling
+ * exit() from any thread terminates every thread in the process.
+ *
+ * thread_exit() never returns.
+ */
+void thread_exit(int status);
+
+/**
+ * Create a new process that is a copy of the current one: the same memory,
+ * the same open files, and a single thread that is a copy of the calling
+ * thread. Memory is shared copy-on-write, so forking does not copy any pages
+ * until one of the processes writes to them.
+ *
+ * Returns the child's process ID in the parent, 0 in the child, or -1 if the
+ * child could not be created.
+ */
+int fork();
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,88 @@
+#include "syscall.h"
+#include "stdlib.h"
+
+#define NUM_THREADS 4
+
+int counts[NUM_THREADS];
+int never = 0;
+int sleeping = 0, joining = 0;
+int sleeper;
+
+void announce(int *started) {
+	*started = 1;
+	futex_wake_all(started);
+}
+
+int count(void *arg) {
+	int i = (int) arg;
+	counts[i] = i*10;
+	return i*10 + 1;
+}
+
+int quit(void *arg) {
+	thread_exit((int) arg);
+	return -1;
+}
+
+/* Block forever, so exit() has to take this thread down. */
+int sleep(void *arg) {
+	announce(&sleeping);
+	futex_wait_while(&never, 0);
+	return -1;
+}
+
+/* Block forever, waiting for the sleeping thread. */
+int joinSleeper(void *arg) {
+	announce(&joining);
+	thread_join(sleeper, 0);
+	return -1;
+}
+
+int main(int argc, char* argv[]) {
+	int tids[NUM_THREADS];
+	int i, tid, status;
+
+	printf("creating and joining %d threads...\n", NUM_THREADS);
+	for(i = 0; i < NUM_THREADS; i++) {
+		tids[i] = thread_create(count, (void*) i);
+		if(tids[i] < 0) {
+			printf("...failed (tid = %d)\n", tids[i]);
+			exit(-1);
+		}
+	}
+	for(i = 0; i < NUM_THREADS; i++) {
+		status = 0;
+		if(thread_join(tids[i], &status) != 1 || status != i*10 + 1
+				|| counts[i] != i*10) {
+			printf("...failed (status = %d)\n", status);
+			exit(-2);
+		}
+	}
+
+	printf("thread_exit from a thread...\n");
+	tid = thread_create(quit, (void*) 5);
+	if(thread_join(tid, &status) != 1 || status != 5) {
+		printf("...failed (status = %d)\n", status);
+		exit(-3);
+	}
+
+	printf("joining twice, joining self and joining a bad tid...\n");
+	if(thread_join(tid, 0) != -1 || thread_join(0, 0) != -1
+			|| thread_join(1000, 0) != -1) {
+		printf("...failed\n");
+		exit(-4);
+	}
+
+	printf("exit while other threads are blocked...\n");
+	sleeper = thread_create(sleep, 0);
+	tid = thread_create(joinSleeper, 0);
+	if(sleeper < 0 || tid < 0) {
+		printf("...failed\n");
+		exit(-5);
+	}
+	futex_wait_while(&sleeping, 0);
+	futex_wait_while(&joining, 0);
+
+	printf("...passed if this process exits\n");
+	exit(0);
+}
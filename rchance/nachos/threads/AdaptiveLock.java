@@ -0,0 +1,73 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Lock</tt> that spins for a while before blocking. While the holder of
+ * the lock is running on another processor, it will probably release the lock
+ * soon, and spinning is cheaper than two context switches. If the holder is
+ * not running, <tt>acquire()</tt> blocks immediately, as <tt>Lock</tt> does.
+ * 
+ * <p>
+ * The Nachos machine has a single processor, so a waiting thread never sees
+ * the holder running and never spins. The spin path is there for
+ * multiprocessor simulation.
+ */
+public class AdaptiveLock extends Lock {
+	/**
+	 * Allocate a new named adaptive lock. The spin limit is read from
+	 * <tt>AdaptiveLock.spinLimit</tt>.
+	 * 
+	 * @param name the name of this lock, for debugging and statistics.
+	 */
+	public AdaptiveLock(String name) {
+		this(name, Config.getInteger("AdaptiveLock.spinLimit", 100));
+	}
+
+	/**
+	 * Allocate a new named adaptive lock.
+	 * 
+	 * @param name the name of this lock, for debugging and statistics.
+	 * @param spinLimit the most times to retry before blocking.
+	 */
+	public AdaptiveLock(String name, int spinLimit) {
+		super(name);
+
+		Lib.assertTrue(spinLimit >= 0);
+		this.spinLimit = spinLimit;
+	}
+
+	/**
+	 * Acquire this lock, spinning while the holder is running, and blocking
+	 * once the holder stops running or the spin limit is reached.
+	 */
+	public void acquire() {
+		for (int i = 0; i < spinLimit; i++) {
+			if (tryAcquire()) {
+				if (i > 0) {
+					numContended++;
+					numSpinAcquisitions++;
+				}
+				return;
+			}
+
+			KThread holder = getHolder();
+			if (holder != null && !holder.isRunning())
+				break;
+		}
+
+		super.acquire();
+	}
+
+	/**
+	 * Return a one-line summary of the contention on this lock.
+	 */
+	public String toString() {
+		return super.toString() + ", " + numSpinAcquisitions
+				+ " acquired by spinning";
+	}
+
+	private int spinLimit;
+
+	private int numSpinAcquisitions = 0;
+}
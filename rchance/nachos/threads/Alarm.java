@@ -33,13 +33,15 @@ public class Alarm {
 	 * should be run.
 	 */
 	public void timerInterrupt() {
-		for(Map.Entry<KThread,Long> e : waitTime.entrySet()) {
+		Iterator<Map.Entry<KThread,Long>> it = waitTime.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<KThread,Long> e = it.next();
 			KThread threadToCheck = e.getKey();
 			Long id = e.getValue();
 
 			if(id.longValue() < Machine.timer().getTime()) {
 				threadToCheck.ready();// add checked thread to ready queue
-				waitTime.remove(threadToCheck);// remove from wait list
+				it.remove();// remove from wait list
 			}
 		}
 	}
@@ -60,10 +62,10 @@ public class Alarm {
 
                 if(x <= 0) return;// trivial case
 
+		boolean intStatus = Machine.interrupt().disable();// Disable interrupts for context switch atomicity
 		waitTime.put(KThread.currentThread(),new Long(Machine.timer().getTime() + x));
-		Machine.interrupt().disable();// Disable interrupts for context switch atomicity
-		KThread.sleep();
-		Machine.interrupt().enable();// Renable interrupts
+		KThread.sleep(ThreadStats.blockedAlarm);
+		Machine.interrupt().restore(intStatus);// Restore interrupts
 	}
 	
 	// Testing
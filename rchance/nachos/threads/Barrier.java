@@ -0,0 +1,112 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A cyclic <tt>Barrier</tt> makes a fixed number of threads, the
+ * <i>parties</i>, wait for each other. Each party calls <tt>await()</tt>,
+ * which blocks until every party has called it; the last to arrive wakes the
+ * others at once, and the barrier is then ready for the next phase.
+ */
+public class Barrier {
+	/**
+	 * Allocate a new barrier.
+	 * 
+	 * @param parties the number of threads that must call <tt>await()</tt>
+	 * before any of them proceeds. Must be positive.
+	 */
+	public Barrier(int parties) {
+		Lib.assertTrue(parties > 0);
+
+		this.parties = parties;
+	}
+
+	/**
+	 * Wait until every party has called <tt>await()</tt> in the current
+	 * phase.
+	 * 
+	 * @return the number of parties that arrived after this one, so that
+	 * exactly one party (the last to arrive) sees zero.
+	 */
+	public int await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int remaining = parties - ++numArrived;
+
+		if (remaining > 0) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep(ThreadStats.blockedSemaphore);
+		}
+		else {
+			numArrived = 0;
+			numPhases++;
+
+			KThread thread;
+			while ((thread = waitQueue.nextThread()) != null)
+				thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return remaining;
+	}
+
+	/**
+	 * Return the number of phases completed so far.
+	 * 
+	 * @return the number of times every party has passed the barrier.
+	 */
+	public int getPhases() {
+		return numPhases;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		final int parties = 4, phases = 5;
+		final Barrier barrier = new Barrier(parties);
+		final int[] arrivals = new int[phases];
+		final int[] numLast = new int[1];
+
+		KThread[] threads = new KThread[parties - 1];
+		for (int i = 0; i < threads.length; i++) {
+			final int delay = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int p = 0; p < phases; p++) {
+						for (int j = 0; j < delay; j++)
+							KThread.yield();
+						arrivals[p]++;
+						if (barrier.await() == 0)
+							numLast[0]++;
+						Lib.assertTrue(arrivals[p] == parties,
+								"Passed barrier early");
+					}
+				}
+			}).setName("barrier party " + i);
+			threads[i].fork();
+		}
+
+		for (int p = 0; p < phases; p++) {
+			arrivals[p]++;
+			if (barrier.await() == 0)
+				numLast[0]++;
+			Lib.assertTrue(arrivals[p] == parties, "Passed barrier early");
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		Lib.assertTrue(barrier.getPhases() == phases && numLast[0] == phases);
+	}
+
+	private int parties;
+
+	private int numArrived = 0;
+
+	private int numPhases = 0;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
  * messages. Multiple threads can be waiting to <i>speak</i>, and multiple
@@ -27,6 +29,38 @@ public class Communicator {
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
+		speak(new int[] { word });
+	}
+
+	/**
+	 * Transfer every word in <i>words</i>, in order, to listening threads.
+	 * Words are copied directly into the buffers of waiting listeners, as many
+	 * at a time as each listener has room for.
+	 * 
+	 * <p>
+	 * Does not return until every word has been received by some listener.
+	 * 
+	 * @param words the integers to transfer.
+	 */
+	public void speak(int[] words) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int pos = 0;
+		while (pos < words.length && !listeners.isEmpty()) {
+			Waiter listener = listeners.removeFirst();
+			pos += listener.transferFrom(words, pos, words.length - pos);
+			listener.thread.ready();
+		}
+
+		if (pos < words.length) {
+			// no listeners left, so no speaker can be waiting ahead of us
+			Waiter speaker = new Waiter(words, pos, words.length);
+			speakers.add(speaker);
+			KThread.sleep(ThreadStats.blockedCondition);
+			Lib.assertTrue(speaker.pos == speaker.end);
+		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -36,6 +70,148 @@ public class Communicator {
 	 * @return the integer transferred.
 	 */
 	public int listen() {
-		return 0;
+		int[] word = new int[1];
+		listen(word);
+		return word[0];
+	}
+
+	/**
+	 * Wait for at least one word to be spoken through this communicator, and
+	 * receive up to <tt>buf.length</tt> words into <i>buf</i>. Words from
+	 * waiting speakers are copied in one pass, and a speaker whose words have
+	 * all been received is released.
+	 * 
+	 * @param buf the buffer to receive words into. Must not be empty.
+	 * @return the number of words received.
+	 */
+	public int listen(int[] buf) {
+		Lib.assertTrue(buf.length > 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int received = 0;
+		while (received < buf.length && !speakers.isEmpty()) {
+			Waiter speaker = speakers.getFirst();
+			received += speaker.transferTo(buf, received, buf.length
+					- received);
+			if (speaker.pos == speaker.end) {
+				speakers.removeFirst();
+				speaker.thread.ready();
+			}
+		}
+
+		if (received == 0) {
+			Waiter listener = new Waiter(buf, 0, buf.length);
+			listeners.add(listener);
+			KThread.sleep(ThreadStats.blockedCondition);
+			received = listener.pos;
+			Lib.assertTrue(received > 0);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return received;
+	}
+
+	/**
+	 * A thread blocked in <tt>speak()</tt> or <tt>listen()</tt>, with the part
+	 * of its buffer that has not been transferred yet.
+	 */
+	private static class Waiter {
+		Waiter(int[] words, int pos, int end) {
+			this.words = words;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		/** Copy up to <i>length</i> words from <i>src</i> into this buffer. */
+		int transferFrom(int[] src, int offset, int length) {
+			int amount = Math.min(length, end - pos);
+			System.arraycopy(src, offset, words, pos, amount);
+			pos += amount;
+			return amount;
+		}
+
+		/** Copy up to <i>length</i> words from this buffer into <i>dst</i>. */
+		int transferTo(int[] dst, int offset, int length) {
+			int amount = Math.min(length, end - pos);
+			System.arraycopy(words, pos, dst, offset, amount);
+			pos += amount;
+			return amount;
+		}
+
+		KThread thread = KThread.currentThread();
+
+		int[] words;
+
+		int pos, end;
+	}
+
+	private static class Speaker implements Runnable {
+		Speaker(Communicator com, int first, int count, boolean batched) {
+			this.com = com;
+			this.first = first;
+			this.count = count;
+			this.batched = batched;
+		}
+
+		public void run() {
+			if (batched) {
+				int[] words = new int[count];
+				for (int i = 0; i < count; i++)
+					words[i] = first + i;
+				com.speak(words);
+			}
+			else {
+				for (int i = 0; i < count; i++)
+					com.speak(first + i);
+			}
+		}
+
+		private Communicator com;
+
+		private int first, count;
+
+		private boolean batched;
 	}
+
+	/**
+	 * Test that every spoken word is heard exactly once, with single-word and
+	 * batched speakers and listeners.
+	 */
+	public static void selfTest() {
+		Communicator com = new Communicator();
+
+		KThread single = new KThread(new Speaker(com, 0, 10, false));
+		KThread batch = new KThread(new Speaker(com, 10, 30, true));
+		single.setName("speaker").fork();
+		batch.setName("batch speaker").fork();
+
+		boolean[] heard = new boolean[40];
+		int total = 0;
+		int[] buf = new int[7];
+		while (total < heard.length) {
+			int n;
+			if (total % 2 == 0) {
+				n = com.listen(buf);
+			}
+			else {
+				buf[0] = com.listen();
+				n = 1;
+			}
+			for (int i = 0; i < n; i++) {
+				Lib.assertTrue(!heard[buf[i]], "Word heard twice");
+				heard[buf[i]] = true;
+			}
+			total += n;
+		}
+
+		single.join();
+		batch.join();
+	}
+
+	/** Speakers waiting for listeners. Never non-empty with listeners. */
+	private LinkedList<Waiter> speakers = new LinkedList<Waiter>();
+
+	/** Listeners waiting for speakers. */
+	private LinkedList<Waiter> listeners = new LinkedList<Waiter>();
 }
@@ -64,6 +64,20 @@ public class Condition {
 		waitQueue = new LinkedList<Semaphore>();
 	}
 
+	/**
+	 * Allocate a new named condition variable, which is profiled by
+	 * <tt>SyncProfiler</tt>.
+	 * 
+	 * @param conditionLock the lock associated with this condition variable.
+	 * @param name the name of this condition variable, for debugging and
+	 * statistics.
+	 */
+	public Condition(Lock conditionLock, String name) {
+		this(conditionLock);
+
+		profile = SyncProfiler.register("condition", name);
+	}
+
 	/**
 	 * Atomically release the associated lock and go to sleep on this condition
 	 * variable until another thread wakes it using <tt>wake()</tt>. The current
@@ -82,8 +96,17 @@ public class Condition {
 		Semaphore waiter = new Semaphore(0);
 		waitQueue.add(waiter);
 
+		if (profile != null)
+			profile.startWait(null);
+
 		conditionLock.release();
+		int reason = KThread.setBlockReason(ThreadStats.blockedCondition);
 		waiter.P();
+		KThread.setBlockReason(reason);
+
+		if (profile != null)
+			profile.endWait();
+
 		conditionLock.acquire();
 	}
 
@@ -112,4 +135,6 @@ public class Condition {
 	private Lock conditionLock;
 
 	private LinkedList<Semaphore> waitQueue;
+
+	private SyncProfiler.Record profile = null;
 }
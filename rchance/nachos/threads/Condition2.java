@@ -2,14 +2,13 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.*;
-
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
  * 
  * <p>
- * You must implement this.
+ * Sleeping threads wait on a scheduler thread queue, so <tt>wake()</tt> does
+ * not allocate and takes constant time with a FIFO scheduler.
  * 
  * @see nachos.threads.Condition
  */
@@ -23,8 +22,20 @@ public class Condition2 {
 	 */
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
+	}
 
-		conditionQueue = new LinkedList<KThread>();
+	/**
+	 * Allocate a new named condition variable, which is profiled by
+	 * <tt>SyncProfiler</tt>.
+	 * 
+	 * @param conditionLock the lock associated with this condition variable.
+	 * @param name the name of this condition variable, for debugging and
+	 * statistics.
+	 */
+	public Condition2(Lock conditionLock, String name) {
+		this(conditionLock);
+
+		profile = SyncProfiler.register("condition", name);
 	}
 
 	/**
@@ -32,20 +43,31 @@ public class Condition2 {
 	 * variable until another thread wakes it using <tt>wake()</tt>. The current
 	 * thread must hold the associated lock. The thread will automatically
 	 * reacquire the lock before <tt>sleep()</tt> returns.
+	 * 
+	 * <p>
+	 * Interrupts stay disabled from the moment the thread joins the wait queue
+	 * until it is asleep, so a <tt>wake()</tt> issued by the thread that next
+	 * acquires the lock cannot be lost.
 	 */
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		conditionQueue.addFirst(KThread.currentThread());
+		boolean intStatus = Machine.interrupt().disable();
+
+		waitQueue.waitForAccess(KThread.currentThread());
+		numWaiting++;
+
+		if (profile != null)
+			profile.startWait(null);
 
 		conditionLock.release();
+		KThread.sleep(ThreadStats.blockedCondition);
+
+		if (profile != null)
+			profile.endWait();
+
+		Machine.interrupt().restore(intStatus);
 
-/*		if(KThread.currentThread() != conditionQueue.poll()) {
-			Machine.interrupt().disable();
-			KThread.sleep();
-			Machine.interrupt().enable();
-		}
-*/		
 		conditionLock.acquire();
 	}
 
@@ -56,24 +78,43 @@ public class Condition2 {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-/*		KThread threadToWake;
+		if (numWaiting == 0)
+			return;
 
-		if (!waitQueue.isEmpty()) {
-			threadToWake = waitQueue.nextThread();
-			Machine.interrupt().disable();
-			threadToWake.ready();
-			Machine.interrupt().enable();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = waitQueue.nextThread();
+		if (thread != null) {
+			numWaiting--;
+			thread.ready();
 		}
-*/	}
+
+		Machine.interrupt().restore(intStatus);
+	}
 
 	/**
 	 * Wake up all threads sleeping on this condition variable. The current
 	 * thread must hold the associated lock.
+	 * 
+	 * <p>
+	 * The whole wait queue is moved to the ready queue with interrupts
+	 * disabled once, rather than once per thread.
 	 */
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	}
 
+		if (numWaiting == 0)
+			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread;
+		while ((thread = waitQueue.nextThread()) != null)
+			thread.ready();
+		numWaiting = 0;
+
+		Machine.interrupt().restore(intStatus);
+	}
 
 	private static class InterlockTest {
 		private static Lock lock;
@@ -107,14 +148,52 @@ public class Condition2 {
 		}
 	}
 
+	/**
+	 * Test that <tt>wakeAll()</tt> wakes every sleeper.
+	 */
+	private static void wakeAllTest() {
+		final Lock lock = new Lock();
+		final Condition2 cv = new Condition2(lock);
+		final int[] awake = new int[1];
+
+		KThread[] sleepers = new KThread[5];
+		for (int i = 0; i < sleepers.length; i++) {
+			sleepers[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					cv.sleep();
+					awake[0]++;
+					lock.release();
+				}
+			});
+			sleepers[i].setName("sleeper " + i).fork();
+		}
+
+		// let every sleeper reach cv.sleep()
+		for (int i = 0; i < sleepers.length; i++)
+			KThread.yield();
+
+		lock.acquire();
+		cv.wakeAll();
+		lock.release();
+
+		for (int i = 0; i < sleepers.length; i++)
+			sleepers[i].join();
+
+		Lib.assertTrue(awake[0] == sleepers.length, "Expected every sleeper to wake");
+	}
+
 	public static void selfTest() {
 		new InterlockTest();
+		wakeAllTest();
 	}
 
 	private Lock conditionLock;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-	private LinkedList<KThread> conditionQueue;
 
+	/** The number of threads on <tt>waitQueue</tt>. */
+	private int numWaiting = 0;
 
+	private SyncProfiler.Record profile = null;
 }
@@ -0,0 +1,103 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CountDownLatch</tt> lets threads wait until a set number of events
+ * have happened. It has two operations:
+ * 
+ * <ul>
+ * <li><tt>countDown()</tt>: decrements the count. When the count reaches zero,
+ * every thread waiting in <tt>await()</tt> is woken up at once.
+ * <li><tt>await()</tt>: waits until the count is zero.
+ * </ul>
+ * 
+ * <p>
+ * A latch cannot be reset; once the count is zero, <tt>await()</tt> returns
+ * immediately.
+ */
+public class CountDownLatch {
+	/**
+	 * Allocate a new latch.
+	 * 
+	 * @param count the number of <tt>countDown()</tt> calls needed to open the
+	 * latch. Must not be negative.
+	 */
+	public CountDownLatch(int count) {
+		Lib.assertTrue(count >= 0);
+
+		this.count = count;
+	}
+
+	/**
+	 * Atomically decrement the count, waking every waiting thread if it
+	 * reaches zero. Does nothing if the count is already zero.
+	 */
+	public void countDown() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0 && --count == 0) {
+			KThread thread;
+			while ((thread = waitQueue.nextThread()) != null)
+				thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wait until the count reaches zero.
+	 */
+	public void await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep(ThreadStats.blockedSemaphore);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the current count.
+	 * 
+	 * @return the number of <tt>countDown()</tt> calls still needed.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(5);
+		final int[] started = new int[1];
+
+		for (int i = 0; i < 5; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+					start.await();
+					started[0]++;
+					done.countDown();
+				}
+			}).setName("latch waiter").fork();
+		}
+
+		KThread.yield();
+		Lib.assertTrue(started[0] == 0, "Latch opened early");
+
+		start.countDown();
+		done.await();
+
+		Lib.assertTrue(started[0] == 5 && done.getCount() == 0);
+		done.await();
+	}
+
+	private int count;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -66,6 +66,8 @@ public class KThread {
 			name = "main";
 			restoreState();
 
+			liveThreads.add(this);
+
 			createIdleThread();
 		}
 	}
@@ -125,6 +127,72 @@ public class KThread {
 		return (name + " (#" + id + ")");
 	}
 
+	/**
+	 * Test whether this thread is currently running on a processor.
+	 * 
+	 * @return <tt>true</tt> if this thread is running.
+	 */
+	boolean isRunning() {
+		return status == statusRunning;
+	}
+
+	/**
+	 * Return the time accounting for this thread, including the time spent so
+	 * far in its current state.
+	 * 
+	 * @return a snapshot of this thread's statistics.
+	 */
+	public ThreadStats getStats() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadStats snapshot = new ThreadStats(stats);
+		long elapsed = Machine.timer().getTime() - statusTime;
+		if (status == statusReady)
+			snapshot.readyTicks += elapsed;
+		else if (status == statusRunning)
+			snapshot.runningTicks += elapsed;
+		else if (status == statusBlocked)
+			snapshot.blockedTicks[blockReason] += elapsed;
+
+		Machine.interrupt().restore(intStatus);
+		return snapshot;
+	}
+
+	/**
+	 * Attribute the time the current thread spends blocked to <i>reason</i>,
+	 * instead of to the synchronization primitive it blocks on. For example,
+	 * a page fault handler that waits on a lock and then on the disk sets
+	 * <tt>ThreadStats.blockedPageFault</tt> for the duration of the fault.
+	 * 
+	 * @param reason one of the <tt>ThreadStats.blockedZZZ</tt> constants, or
+	 * <tt>noBlockReason</tt> to use the primitive's own reason.
+	 * @return the previous reason, which the caller must restore when done.
+	 */
+	public static int setBlockReason(int reason) {
+		Lib.assertTrue(reason == noBlockReason
+				|| (reason >= 0 && reason < ThreadStats.numReasons));
+
+		int previous = currentThread.blockReasonOverride;
+		currentThread.blockReasonOverride = reason;
+		return previous;
+	}
+
+	/**
+	 * Print the time accounting of every live thread, and the total over all
+	 * finished threads.
+	 */
+	public static void printStats() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		System.out.println("Thread times (ticks):");
+		for (KThread thread : liveThreads)
+			System.out.println("\t" + thread + ": " + thread.getStats());
+		System.out.println("\t" + numFinished + " finished threads: "
+				+ finishedStats);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Deterministically and consistently compare this thread to another thread.
 	 */
@@ -160,6 +228,8 @@ public class KThread {
 			}
 		});
 
+		liveThreads.add(this);
+
 		ready();
 
 		Machine.interrupt().restore(intStatus);
@@ -201,13 +271,20 @@ public class KThread {
 		Lib.assertTrue(toBeDestroyed == null);
 		toBeDestroyed = currentThread;
 
-		currentThread.status = statusFinished;
-		finishedThreads.add(currentThread());
+		currentThread.setStatus(statusFinished);
 
-		if(parentThreads.get(currentThread) != null) {
-			parentThreads.get(currentThread).ready();
-			parentThreads.remove(currentThread);
+		liveThreads.remove(currentThread);
+		finishedStats.add(currentThread.stats);
+		numFinished++;
+
+		// wake every thread waiting in join()
+		if (currentThread.joinQueue != null) {
+			KThread thread;
+			while ((thread = currentThread.joinQueue.nextThread()) != null)
+				thread.ready();
+			currentThread.joinQueue = null;
 		}
+
 		sleep();
 	}
 
@@ -253,12 +330,27 @@ public class KThread {
 	 * scheduled this thread to be destroyed by the next thread to run.
 	 */
 	public static void sleep() {
+		sleep(ThreadStats.blockedOther);
+	}
+
+	/**
+	 * Relinquish the CPU because the current thread is blocked, and attribute
+	 * the time it spends blocked to <i>reason</i>, unless a reason was set with
+	 * <tt>setBlockReason()</tt>.
+	 * 
+	 * @param reason one of the <tt>ThreadStats.blockedZZZ</tt> constants.
+	 */
+	public static void sleep(int reason) {
 		Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
 
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		if (currentThread.status != statusFinished)
-			currentThread.status = statusBlocked;
+		if (currentThread.status != statusFinished) {
+			if (currentThread.blockReasonOverride != noBlockReason)
+				reason = currentThread.blockReasonOverride;
+			currentThread.setStatus(statusBlocked);
+			currentThread.blockReason = reason;
+		}
 
 		runNextThread();
 	}
@@ -273,7 +365,7 @@ public class KThread {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(status != statusReady);
 
-		status = statusReady;
+		setStatus(statusReady);
 		if (this != idleThread)
 			readyQueue.waitForAccess(this);
 
@@ -282,35 +374,32 @@ public class KThread {
 
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
-	 * return immediately. This method must only be called once; the second call
-	 * is not guaranteed to return. This thread must not be the current thread.
+	 * return immediately. Any number of threads may join the same thread; they
+	 * are all woken when it finishes. This thread must not be the current
+	 * thread.
+	 * 
+	 * <p>
+	 * Waiters sleep on this thread's own join queue, which transfers their
+	 * priority to this thread.
 	 */
 	public void join() {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 		Lib.assertTrue(this != currentThread);
 
-		if(finishedThreads.contains(this)) return;
-
-		parentThreads.put(this, currentThread());
-
-		// Ensure "this" hasn't already been joined by parent; update list of joined threads
-		List<KThread> joined = joinThreads.get(currentThread);
-
-		if(joined == null) {
-			joined = new LinkedList<KThread>();
-			joined.add(this);
-		}
-		else {
+		boolean intStatus = Machine.interrupt().disable();
 
+		if (status != statusFinished) {
+			if (joinQueue == null) {
+				joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+				joinQueue.acquire(this);
+			}
 
-		Lib.assertTrue(joined.contains(this) == false);
-		joined.add(this);
+			joinQueue.waitForAccess(currentThread);
+			sleep(ThreadStats.blockedJoin);
 		}
 
-		Machine.interrupt().disable();
-		currentThread().sleep();
-		Machine.interrupt().enable();		
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -399,7 +488,7 @@ public class KThread {
 
 		Machine.autoGrader().runningThread(this);
 
-		status = statusRunning;
+		setStatus(statusRunning);
 
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
@@ -417,6 +506,25 @@ public class KThread {
 		Lib.assertTrue(this == currentThread);
 	}
 
+	/**
+	 * Charge the time since the last status change to the bucket for the
+	 * current status, then change to <i>newStatus</i>.
+	 */
+	private void setStatus(int newStatus) {
+		long now = Machine.timer().getTime();
+		long elapsed = now - statusTime;
+
+		if (status == statusReady)
+			stats.readyTicks += elapsed;
+		else if (status == statusRunning)
+			stats.runningTicks += elapsed;
+		else if (status == statusBlocked)
+			stats.blockedTicks[blockReason] += elapsed;
+
+		statusTime = now;
+		status = newStatus;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(int which) {
 			this.which = which;
@@ -443,6 +551,7 @@ public class KThread {
 		new PingTest(0).run();
 		joinTest1();
 		joinTest2();
+		joinTest3();
 	}
 
 	private static void joinTest1 () {
@@ -489,6 +598,29 @@ public class KThread {
 		Lib.assertTrue((child2.status == statusFinished), " Expected child2 to be finished.");
 	}	
 
+	private static void joinTest3 () {
+		final KThread child3 = new KThread( new Runnable () {
+			public void run() {
+				for(int i = 0; i < 3; i++)
+					yield();
+			}
+		});
+		KThread joiner = new KThread( new Runnable () {
+			public void run() {
+				child3.join();
+				Lib.assertTrue((child3.status == statusFinished), " Expected child3 to be finished.");
+			}
+		});
+		child3.setName("child3").fork();
+		joiner.setName("joiner").fork();
+
+		// two threads join child3; both must be woken, and a late join returns
+		child3.join();
+		joiner.join();
+		child3.join();
+		Lib.assertTrue((joiner.status == statusFinished), " Expected joiner to be finished.");
+	}
+
 	private static final char dbgThread = 't';
 
 	/**
@@ -521,6 +653,26 @@ public class KThread {
 
 	private TCB tcb;
 
+	/** Time accounting for this thread, up to <tt>statusTime</tt>. */
+	private ThreadStats stats = new ThreadStats();
+
+	/** The time at which <tt>status</tt> last changed. */
+	private long statusTime = Machine.timer().getTime();
+
+	/** Why this thread is blocked, if it is. */
+	private int blockReason = ThreadStats.blockedOther;
+
+	private int blockReasonOverride = noBlockReason;
+
+	/**
+	 * Threads waiting in <tt>join()</tt> for this thread to finish. Allocated
+	 * by the first <tt>join()</tt>, and released when this thread finishes.
+	 */
+	private ThreadQueue joinQueue = null;
+
+	/** Passed to <tt>setBlockReason()</tt> to clear an override. */
+	public static final int noBlockReason = -1;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
@@ -538,9 +690,9 @@ public class KThread {
 
 	private static KThread idleThread = null;
 
-	private static HashMap<KThread,LinkedList<KThread>> joinThreads = new HashMap<KThread,LinkedList<KThread>>();
+	private static LinkedHashSet<KThread> liveThreads = new LinkedHashSet<KThread>();
 
-	private static List<KThread> finishedThreads = new LinkedList<KThread>();	
+	private static ThreadStats finishedStats = new ThreadStats();
 
-	private static HashMap<KThread,KThread> parentThreads = new HashMap<KThread,KThread>();
+	private static int numFinished = 0;
 }
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A <tt>Lock</tt> is a synchronization primitive that has two states,
  * <i>busy</i> and <i>free</i>. There are only two operations allowed on a lock:
@@ -25,6 +27,21 @@ public class Lock {
 	public Lock() {
 	}
 
+	/**
+	 * Allocate a new named lock. The lock will initially be <i>free</i>.
+	 * Contention statistics for named locks are printed by
+	 * <tt>printStats()</tt>, and named locks are profiled by
+	 * <tt>SyncProfiler</tt>.
+	 * 
+	 * @param name the name of this lock, for debugging and statistics.
+	 */
+	public Lock(String name) {
+		this.name = name;
+		profile = SyncProfiler.register("lock", name);
+
+		namedLocks.add(this);
+	}
+
 	/**
 	 * Atomically acquire this lock. The current thread must not already hold
 	 * this lock.
@@ -35,13 +52,31 @@ public class Lock {
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
 
+		numAcquisitions++;
+
 		if (lockHolder != null) {
+			long start = Machine.timer().getTime();
+			numContended++;
+
+			if (profile != null)
+				profile.startWait(this);
+
 			waitQueue.waitForAccess(thread);
-			KThread.sleep();
+			KThread.sleep(ThreadStats.blockedLock);
+
+			// release() set acquireTime when it handed the lock over
+			waitTicks += acquireTime - start;
+
+			if (profile != null)
+				profile.endWait();
 		}
 		else {
 			waitQueue.acquire(thread);
 			lockHolder = thread;
+			acquireTime = Machine.timer().getTime();
+
+			if (profile != null)
+				profile.acquired(0);
 		}
 
 		Lib.assertTrue(lockHolder == thread);
@@ -49,6 +84,33 @@ public class Lock {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Acquire this lock if it is <i>free</i>, without waiting. The current
+	 * thread must not already hold this lock.
+	 * 
+	 * @return <tt>true</tt> if the lock was acquired.
+	 */
+	public boolean tryAcquire() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		boolean acquired = (lockHolder == null);
+		if (acquired) {
+			numAcquisitions++;
+			waitQueue.acquire(thread);
+			lockHolder = thread;
+			acquireTime = Machine.timer().getTime();
+
+			if (profile != null)
+				profile.acquired(0);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
 	/**
 	 * Atomically release this lock, allowing other threads to acquire it.
 	 */
@@ -57,8 +119,13 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
-		if ((lockHolder = waitQueue.nextThread()) != null)
+		long now = Machine.timer().getTime();
+		maxHoldTicks = Math.max(maxHoldTicks, now - acquireTime);
+
+		if ((lockHolder = waitQueue.nextThread()) != null) {
+			acquireTime = now;
 			lockHolder.ready();
+		}
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -72,8 +139,60 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Return the thread holding this lock, or <tt>null</tt> if it is free.
+	 * The result may be out of date as soon as it is returned, unless
+	 * interrupts are disabled.
+	 * 
+	 * @return the current holder of this lock.
+	 */
+	protected KThread getHolder() {
+		return lockHolder;
+	}
+
+	/**
+	 * Return the name of this lock.
+	 * 
+	 * @return the name given to this lock, or <tt>null</tt> if it is unnamed.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return a one-line summary of the contention on this lock.
+	 */
+	public String toString() {
+		return name + ": " + numAcquisitions + " acquisitions, "
+				+ numContended + " contended, " + waitTicks
+				+ " wait ticks, max hold " + maxHoldTicks + " ticks";
+	}
+
+	/**
+	 * Print the contention statistics of every named lock.
+	 */
+	public static void printStats() {
+		System.out.println("Lock contention:");
+		for (Lock lock : namedLocks)
+			System.out.println("\t" + lock);
+	}
+
+	private String name = null;
+
+	private SyncProfiler.Record profile = null;
+
 	private KThread lockHolder = null;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
+
+	/** The time at which the current holder received this lock. */
+	private long acquireTime;
+
+	/** Contention statistics. */
+	protected int numAcquisitions = 0, numContended = 0;
+
+	protected long waitTicks = 0, maxHoldTicks = 0;
+
+	private static LinkedList<Lock> namedLocks = new LinkedList<Lock>();
 }
@@ -0,0 +1,275 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either by any number of
+ * readers at once, or by a single writer:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds the lock, then hold
+ * it for reading. Readers never wait for each other.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, then hold
+ * it for writing.
+ * </ul>
+ *
+ * <p>
+ * When both readers and writers are waiting, the <i>mode</i> decides who goes
+ * next:
+ *
+ * <ul>
+ * <li><tt>readerPreferring</tt>: a new reader is admitted whenever no writer
+ * holds the lock, even if writers are waiting. Writers can starve.
+ * <li><tt>writerPreferring</tt>: a new reader waits while any writer is
+ * waiting, and a releasing writer hands off to the next writer first. Readers
+ * can starve.
+ * <li><tt>fair</tt>: a new reader waits while any writer is waiting, a
+ * releasing writer admits every waiting reader, and the last reader out admits
+ * the next writer. Reading and writing phases alternate, so neither side
+ * starves.
+ * </ul>
+ *
+ * <p>
+ * This lock does not donate priority to its holders. A <tt>ThreadQueue</tt>
+ * transfers priority to a single owner, which changes only through
+ * <tt>nextThread()</tt> or through <tt>acquire()</tt> on an empty queue, so
+ * it cannot follow a group of readers, or move to a writer while readers are
+ * still queued. Like <tt>Lock</tt>, this lock synchronizes by disabling
+ * interrupts, and it hands the lock directly to the threads it wakes.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new fair read-write lock. The lock will initially be free.
+	 */
+	public ReadWriteLock() {
+		this(fair);
+	}
+
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 *
+	 * @param mode one of <tt>readerPreferring</tt>, <tt>writerPreferring</tt>
+	 * or <tt>fair</tt>.
+	 */
+	public ReadWriteLock(int mode) {
+		Lib.assertTrue(mode == readerPreferring || mode == writerPreferring
+				|| mode == fair);
+
+		this.mode = mode;
+	}
+
+	/**
+	 * Atomically wait until the lock can be held for reading, and hold it.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(writer != KThread.currentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean mustWait = (writer != null)
+				|| (mode != readerPreferring && numWaitingWriters > 0);
+
+		if (mustWait) {
+			numWaitingReaders++;
+			readQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep(ThreadStats.blockedLock);
+			// the releasing thread counted us in numReaders
+		}
+		else {
+			numReaders++;
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release a hold for reading. The last reader out hands the lock to a
+	 * waiting writer, if there is one.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(numReaders > 0 && writer == null);
+
+		if (--numReaders == 0)
+			admitWriter();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically wait until no thread holds the lock, and hold it for writing.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(writer != KThread.currentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer != null || numReaders > 0) {
+			numWaitingWriters++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep(ThreadStats.blockedLock);
+		}
+		else {
+			writeQueue.acquire(thread);
+			writer = thread;
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release a hold for writing, handing the lock to the waiting readers or
+	 * the next waiting writer, as the mode dictates.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+
+		if (mode == writerPreferring) {
+			if (!admitWriter())
+				admitReaders();
+		}
+		else {
+			if (!admitReaders())
+				admitWriter();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return <tt>true</tt> if the current thread is the writer.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	/**
+	 * Hand the lock to the next waiting writer, if there is one.
+	 *
+	 * @return <tt>true</tt> if a writer was admitted.
+	 */
+	private boolean admitWriter() {
+		if (numWaitingWriters == 0)
+			return false;
+
+		writer = writeQueue.nextThread();
+		Lib.assertTrue(writer != null);
+		numWaitingWriters--;
+
+		writer.ready();
+		return true;
+	}
+
+	/**
+	 * Hand the lock to every waiting reader at once.
+	 *
+	 * @return <tt>true</tt> if any readers were admitted.
+	 */
+	private boolean admitReaders() {
+		if (numWaitingReaders == 0)
+			return false;
+
+		numReaders += numWaitingReaders;
+		numWaitingReaders = 0;
+
+		KThread thread;
+		while ((thread = readQueue.nextThread()) != null)
+			thread.ready();
+
+		return true;
+	}
+
+	private static class Tester implements Runnable {
+		Tester(ReadWriteLock rw, boolean writing, int[] state) {
+			this.rw = rw;
+			this.writing = writing;
+			this.state = state;
+		}
+
+		public void run() {
+			for (int i = 0; i < 5; i++) {
+				if (writing) {
+					rw.acquireWrite();
+					Lib.assertTrue(state[0] == 0 && state[1] == 0);
+					state[1] = 1;
+					KThread.yield();
+					state[1] = 0;
+					rw.releaseWrite();
+				}
+				else {
+					rw.acquireRead();
+					Lib.assertTrue(state[1] == 0);
+					state[0]++;
+					state[2] = Math.max(state[2], state[0]);
+					KThread.yield();
+					state[0]--;
+					rw.releaseRead();
+				}
+				KThread.yield();
+			}
+		}
+
+		private ReadWriteLock rw;
+
+		private boolean writing;
+
+		private int[] state;
+	}
+
+	/**
+	 * Test that readers share the lock and writers exclude everyone, in every
+	 * mode.
+	 */
+	public static void selfTest() {
+		int[] modes = { readerPreferring, writerPreferring, fair };
+
+		for (int m = 0; m < modes.length; m++) {
+			ReadWriteLock rw = new ReadWriteLock(modes[m]);
+			// active readers, active writers, most concurrent readers
+			int[] state = new int[3];
+
+			KThread[] threads = new KThread[6];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new KThread(new Tester(rw, i % 3 == 0, state));
+				threads[i].setName("rw tester " + i).fork();
+			}
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+
+			Lib.assertTrue(state[2] > 1, "Expected readers to share the lock");
+		}
+	}
+
+	/** New readers are admitted whenever no writer holds the lock. */
+	public static final int readerPreferring = 0;
+
+	/** Waiting writers go ahead of new and waiting readers. */
+	public static final int writerPreferring = 1;
+
+	/** Reading and writing phases alternate. */
+	public static final int fair = 2;
+
+	private int mode;
+
+	private int numReaders = 0;
+
+	private KThread writer = null;
+
+	private int numWaitingReaders = 0, numWaitingWriters = 0;
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private ThreadQueue writeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -0,0 +1,425 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+/**
+ * A kernel that benchmarks schedulers instead of running user programs. It has
+ * two parts:
+ *
+ * <ul>
+ * <li>a host-side microbenchmark, which constructs a thread queue from every
+ * scheduler named by <tt>SchedulerBenchmark.schedulers</tt> and measures the
+ * wall-clock cost (ns/op) of <tt>waitForAccess()</tt> and
+ * <tt>nextThread()</tt> over thousands of threads.
+ *
+ * <li>simulated workloads (CPU-bound, I/O-bound, lock-heavy with donation
+ * chains, and many short-lived threads), which run on the scheduler selected
+ * by <tt>ThreadedKernel.scheduler</tt>. For each workload it reports
+ * throughput, per-thread wait-time percentiles, and Jain's fairness index, all
+ * in simulated ticks.
+ * </ul>
+ *
+ * <p>
+ * Only one scheduler can drive the ready queue at a time, so compare the
+ * simulated workloads by rerunning with a different
+ * <tt>ThreadedKernel.scheduler</tt>. To use this kernel, set:
+ *
+ * <p>
+ * <blockquote>
+ *
+ * <pre>
+ * Kernel.kernel = nachos.threads.SchedulerBenchmark
+ * ThreadedKernel.scheduler = nachos.threads.RoundRobinScheduler
+ * </pre>
+ *
+ * </blockquote>
+ */
+public class SchedulerBenchmark extends ThreadedKernel {
+	/**
+	 * Allocate a new scheduler benchmark kernel.
+	 */
+	public SchedulerBenchmark() {
+		super();
+	}
+
+	/**
+	 * Initialize this kernel and read the benchmark parameters from the
+	 * configuration file.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		schedulerNames = Config.getString("SchedulerBenchmark.schedulers",
+				"nachos.threads.RoundRobinScheduler,"
+						+ "nachos.threads.PriorityScheduler,"
+						+ "nachos.threads.LotteryScheduler");
+		queueThreads = Config.getInteger("SchedulerBenchmark.queueThreads",
+				4096);
+		queueRounds = Config.getInteger("SchedulerBenchmark.queueRounds", 50);
+		numThreads = Config.getInteger("SchedulerBenchmark.numThreads", 64);
+		manyThreads = Config.getInteger("SchedulerBenchmark.manyThreads",
+				2000);
+		bursts = Config.getInteger("SchedulerBenchmark.bursts", 20);
+		chainDepth = Config.getInteger("SchedulerBenchmark.chainDepth", 8);
+
+		Lib.assertTrue(queueThreads > 0 && queueRounds > 0 && numThreads > 0
+				&& manyThreads > 0 && bursts > 0 && chainDepth > 1);
+	}
+
+	/**
+	 * The benchmark does not run the kernel self-tests, so that they do not
+	 * perturb the measurements.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run the microbenchmarks and the simulated workloads, and print a report
+	 * for each.
+	 */
+	public void run() {
+		System.out.println("\n*** Scheduler queue microbenchmark ("
+				+ queueThreads + " threads, " + queueRounds + " rounds)");
+
+		StringTokenizer st = new StringTokenizer(schedulerNames, ", \t");
+		while (st.hasMoreTokens())
+			benchmarkQueues(st.nextToken());
+
+		System.out.println("\n*** Simulated workloads on "
+				+ scheduler.getClass().getName());
+
+		runWorkload("cpu-bound", numThreads, new WorkerFactory() {
+			public Worker newWorker(int i) {
+				return new CpuWorker(i);
+			}
+		});
+		runWorkload("io-bound", numThreads, new WorkerFactory() {
+			public Worker newWorker(int i) {
+				return new IoWorker(i);
+			}
+		});
+
+		final Lock[] chain = new Lock[chainDepth];
+		for (int i = 0; i < chain.length; i++)
+			chain[i] = new Lock();
+		runWorkload("lock-chain", numThreads, new WorkerFactory() {
+			public Worker newWorker(int i) {
+				return new LockWorker(i, chain);
+			}
+		});
+
+		runWorkload("many-threads", manyThreads, new WorkerFactory() {
+			public Worker newWorker(int i) {
+				return new ShortWorker(i);
+			}
+		});
+	}
+
+	/**
+	 * Measure the host-side cost of the queue operations of the named
+	 * scheduler. Each round enqueues every thread with
+	 * <tt>waitForAccess()</tt> and then drains the queue with
+	 * <tt>nextThread()</tt>. Both a plain queue and a priority-transferring
+	 * queue (as used by locks and joins) are measured.
+	 *
+	 * @param schedulerName the class name of the scheduler to measure.
+	 */
+	private void benchmarkQueues(String schedulerName) {
+		Scheduler s = (Scheduler) Lib.constructObject(schedulerName);
+
+		// fresh threads, so that scheduling state is never shared between
+		// schedulers
+		KThread[] threads = new KThread[queueThreads];
+		for (int i = 0; i < threads.length; i++)
+			threads[i] = new KThread().setName("bench" + i);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < threads.length; i++)
+			s.setPriority(threads[i], PriorityScheduler.priorityMinimum
+					+ Lib.random(PriorityScheduler.priorityMaximum
+							- PriorityScheduler.priorityMinimum + 1));
+
+		benchmarkQueue(schedulerName, s, threads, false);
+		benchmarkQueue(schedulerName, s, threads, true);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private void benchmarkQueue(String schedulerName, Scheduler s,
+			KThread[] threads, boolean transferPriority) {
+		String label = schedulerName + (transferPriority ? " (transfer)" : "");
+
+		ThreadQueue queue = s.newThreadQueue(transferPriority);
+		if (queue == null) {
+			System.out.println(label + ": newThreadQueue() not implemented");
+			return;
+		}
+
+		long enqueueTime = 0, dequeueTime = 0;
+		int returned = 0;
+
+		for (int round = 0; round < queueRounds; round++) {
+			long t0 = System.nanoTime();
+			for (int i = 0; i < threads.length; i++)
+				queue.waitForAccess(threads[i]);
+			long t1 = System.nanoTime();
+
+			int n = 0;
+			while (n < threads.length && queue.nextThread() != null)
+				n++;
+			long t2 = System.nanoTime();
+
+			enqueueTime += t1 - t0;
+			dequeueTime += t2 - t1;
+			returned += n;
+
+			// an incomplete queue would grow without bound
+			if (n < threads.length) {
+				queue = s.newThreadQueue(transferPriority);
+				break;
+			}
+		}
+
+		long ops = (long) returned;
+		if (ops == 0) {
+			System.out.println(label + ": nextThread() returned no threads");
+			return;
+		}
+
+		System.out.println(label + ": waitForAccess "
+				+ (enqueueTime / ops) + " ns/op, nextThread "
+				+ (dequeueTime / ops) + " ns/op");
+	}
+
+	/**
+	 * Fork the workers created by <i>factory</i> and wait for them all to
+	 * finish. No more than <tt>maxLiveThreads</tt> are alive at once, because
+	 * the machine limits the number of TCBs.
+	 *
+	 * @param name the name of the workload.
+	 * @param count the total number of workers to run.
+	 * @param factory creates the workers.
+	 */
+	private void runWorkload(String name, int count, WorkerFactory factory) {
+		Worker[] workers = new Worker[count];
+		Semaphore done = new Semaphore(0);
+
+		long wallStart = System.nanoTime();
+		long start = Machine.timer().getTime();
+
+		for (int base = 0; base < count; base += maxLiveThreads) {
+			int end = Math.min(count, base + maxLiveThreads);
+
+			for (int i = base; i < end; i++) {
+				workers[i] = factory.newWorker(i);
+				workers[i].done = done;
+				workers[i].forkTime = Machine.timer().getTime();
+				new KThread(workers[i]).setName(name + i).fork();
+			}
+			for (int i = base; i < end; i++)
+				done.P();
+		}
+
+		long elapsed = Machine.timer().getTime() - start;
+		long wallTime = System.nanoTime() - wallStart;
+
+		report(name, workers, elapsed, wallTime);
+	}
+
+	private void report(String name, Worker[] workers, long elapsed,
+			long wallTime) {
+		long[] waits = new long[workers.length];
+		long units = 0;
+		double sum = 0, sumSquares = 0;
+
+		for (int i = 0; i < workers.length; i++) {
+			Worker w = workers[i];
+			waits[i] = w.waitTicks;
+			units += w.units;
+
+			double rate = (double) w.units
+					/ Math.max(1, w.finishTime - w.forkTime);
+			sum += rate;
+			sumSquares += rate * rate;
+		}
+		Arrays.sort(waits);
+
+		double fairness = (sumSquares == 0) ? 1.0 : (sum * sum)
+				/ (workers.length * sumSquares);
+
+		System.out.println(name + ": " + workers.length + " threads, "
+				+ elapsed + " ticks, " + (wallTime / 1000000) + " ms host");
+		System.out.println("\tthroughput "
+				+ (units * 1000000L / Math.max(1, elapsed))
+				+ " units/1000000 ticks, "
+				+ (workers.length * 1000000L / Math.max(1, elapsed))
+				+ " threads/1000000 ticks");
+		System.out.println("\twait ticks p50 " + percentile(waits, 50)
+				+ ", p90 " + percentile(waits, 90) + ", p99 "
+				+ percentile(waits, 99) + ", max "
+				+ waits[waits.length - 1]);
+		System.out.println("\tJain fairness " + ((int) (fairness * 1000))
+				/ 1000.0);
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * Consume roughly <i>ticks</i> of simulated kernel time without giving up
+	 * the CPU.
+	 */
+	private static void spin(int ticks) {
+		for (int i = 0; i < ticks; i += Stats.KernelTick) {
+			boolean intStatus = Machine.interrupt().disable();
+			Machine.interrupt().restore(intStatus);
+		}
+	}
+
+	private interface WorkerFactory {
+		Worker newWorker(int i);
+	}
+
+	/**
+	 * A synthetic thread. Subclasses implement <tt>work()</tt>, and use
+	 * <tt>yieldCPU()</tt> and <tt>sleepFor()</tt> so that the time spent
+	 * ready but not running is accounted to <tt>waitTicks</tt>.
+	 */
+	private static abstract class Worker implements Runnable {
+		Worker(int id) {
+			this.id = id;
+		}
+
+		public void run() {
+			waitTicks += Machine.timer().getTime() - forkTime;
+			work();
+			finishTime = Machine.timer().getTime();
+			done.V();
+		}
+
+		abstract void work();
+
+		void yieldCPU() {
+			long t0 = Machine.timer().getTime();
+			KThread.yield();
+			waitTicks += Machine.timer().getTime() - t0;
+		}
+
+		void sleepFor(long ticks) {
+			long t0 = Machine.timer().getTime();
+			ThreadedKernel.alarm.waitUntil(ticks);
+			waitTicks += Math.max(0, Machine.timer().getTime() - t0 - ticks);
+		}
+
+		void setPriority(int priority) {
+			boolean intStatus = Machine.interrupt().disable();
+			ThreadedKernel.scheduler.setPriority(priority);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		int id;
+
+		int units = 0;
+
+		long forkTime, finishTime, waitTicks = 0;
+
+		Semaphore done;
+	}
+
+	private class CpuWorker extends Worker {
+		CpuWorker(int id) {
+			super(id);
+		}
+
+		void work() {
+			for (int i = 0; i < bursts; i++) {
+				spin(cpuBurstTicks);
+				units++;
+				yieldCPU();
+			}
+		}
+	}
+
+	private class IoWorker extends Worker {
+		IoWorker(int id) {
+			super(id);
+		}
+
+		void work() {
+			for (int i = 0; i < bursts; i++) {
+				spin(ioBurstTicks);
+				units++;
+				sleepFor(ioSleepTicks);
+			}
+		}
+	}
+
+	/**
+	 * Worker <i>i</i> holds lock <i>i</i> while it waits for lock <i>i+1</i>,
+	 * so waiters form chains through which a priority scheduler must donate.
+	 * Low-numbered workers get high priority, so donation is needed to avoid
+	 * inversion.
+	 */
+	private class LockWorker extends Worker {
+		LockWorker(int id, Lock[] chain) {
+			super(id);
+			this.chain = chain;
+		}
+
+		void work() {
+			setPriority(PriorityScheduler.priorityMaximum
+					- (id % (PriorityScheduler.priorityMaximum + 1)));
+
+			int first = id % chain.length;
+			int second = (first + 1) % chain.length;
+			// acquire in a global order, so that the chains never deadlock
+			Lock low = chain[Math.min(first, second)];
+			Lock high = chain[Math.max(first, second)];
+
+			for (int i = 0; i < bursts; i++) {
+				low.acquire();
+				spin(ioBurstTicks);
+				high.acquire();
+				spin(ioBurstTicks);
+				units++;
+				high.release();
+				low.release();
+				yieldCPU();
+			}
+		}
+
+		private Lock[] chain;
+	}
+
+	private class ShortWorker extends Worker {
+		ShortWorker(int id) {
+			super(id);
+		}
+
+		void work() {
+			spin(ioBurstTicks);
+			units++;
+			yieldCPU();
+		}
+	}
+
+	private String schedulerNames;
+
+	private int queueThreads, queueRounds;
+
+	private int numThreads, manyThreads, bursts, chainDepth;
+
+	private static final int maxLiveThreads = 200;
+
+	private static final int cpuBurstTicks = 500;
+
+	private static final int ioBurstTicks = 50;
+
+	private static final int ioSleepTicks = 2000;
+}
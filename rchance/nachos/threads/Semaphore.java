@@ -14,6 +14,10 @@ import nachos.machine.*;
  * </ul>
  * 
  * <p>
+ * <tt>V(n)</tt> is equivalent to <tt>n</tt> calls to <tt>V()</tt>, made
+ * atomically.
+ * 
+ * <p>
  * Note that this API does not allow a thread to read the value of the semaphore
  * directly. Even if you did read the value, the only thing you would know is
  * what the value used to be. You don't know what the value is now, because by
@@ -31,6 +35,19 @@ public class Semaphore {
 		value = initialValue;
 	}
 
+	/**
+	 * Allocate a new named semaphore, which is profiled by
+	 * <tt>SyncProfiler</tt>.
+	 * 
+	 * @param initialValue the initial value of this semaphore.
+	 * @param name the name of this semaphore, for debugging and statistics.
+	 */
+	public Semaphore(int initialValue, String name) {
+		this(initialValue);
+
+		profile = SyncProfiler.register("semaphore", name);
+	}
+
 	/**
 	 * Atomically wait for this semaphore to become non-zero and decrement it.
 	 */
@@ -38,11 +55,20 @@ public class Semaphore {
 		boolean intStatus = Machine.interrupt().disable();
 
 		if (value == 0) {
+			if (profile != null)
+				profile.startWait(null);
+
 			waitQueue.waitForAccess(KThread.currentThread());
-			KThread.sleep();
+			KThread.sleep(ThreadStats.blockedSemaphore);
+
+			if (profile != null)
+				profile.endWait();
 		}
 		else {
 			value--;
+
+			if (profile != null)
+				profile.acquired(0);
 		}
 
 		Machine.interrupt().restore(intStatus);
@@ -66,6 +92,27 @@ public class Semaphore {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically increment this semaphore by <i>n</i> and wake up at most
+	 * <i>n</i> threads sleeping on this semaphore.
+	 * 
+	 * @param n the amount to increment by. Must not be negative.
+	 */
+	public void V(int n) {
+		Lib.assertTrue(n >= 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread;
+		while (n > 0 && (thread = waitQueue.nextThread()) != null) {
+			thread.ready();
+			n--;
+		}
+		value += n;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(Semaphore ping, Semaphore pong) {
 			this.ping = ping;
@@ -97,10 +144,27 @@ public class Semaphore {
 			ping.V();
 			pong.P();
 		}
+
+		// release a batch of waiters, with some value left over
+		Semaphore start = new Semaphore(0);
+		Semaphore done = new Semaphore(0);
+		for (int i = 0; i < 4; i++)
+			new KThread(new PingTest(start, done)).setName("batch").fork();
+		for (int i = 0; i < 10; i++) {
+			KThread.yield();
+			start.V(4);
+			for (int j = 0; j < 4; j++)
+				done.P();
+		}
+		start.V(3);
+		for (int i = 0; i < 3; i++)
+			start.P();
 	}
 
 	private int value;
 
+	private SyncProfiler.Record profile = null;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
 }
@@ -0,0 +1,275 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Profiles the named synchronization primitives: every <tt>Lock</tt>,
+ * <tt>Semaphore</tt>, <tt>Condition</tt> and <tt>Condition2</tt> that was
+ * given a name when it was allocated. Unnamed primitives are not profiled.
+ *
+ * <p>
+ * For each name, the profiler records a histogram of how long threads waited
+ * for the primitive and, when <tt>ThreadedKernel.printLockStats</tt> is set,
+ * which threads acquired it (for a condition variable, which threads slept on
+ * it). Primitives that share a name share a record, so a
+ * per-process condition variable shows up once, summed over all processes.
+ *
+ * <p>
+ * The profiler also keeps the live <i>waits-for graph</i>: for each thread
+ * blocked on a named primitive, what it is waiting for, and, for a lock, which
+ * thread holds it. <tt>print()</tt> dumps the records and the graph, and
+ * reports any cycle of threads waiting for each other's locks.
+ */
+public class SyncProfiler {
+	private SyncProfiler() {
+	}
+
+	/**
+	 * Return the record for the primitive named <i>name</i>, creating it if
+	 * necessary.
+	 *
+	 * @param kind the kind of primitive, such as <tt>"lock"</tt>.
+	 * @param name the name of the primitive.
+	 * @return the record to report to.
+	 */
+	static Record register(String kind, String name) {
+		Lib.assertTrue(name != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		String key = kind + " " + name;
+		Record record = records.get(key);
+		if (record == null) {
+			record = new Record(key);
+			records.put(key, record);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return record;
+	}
+
+	/**
+	 * Print every record and the current waits-for graph.
+	 */
+	public static void print() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		System.out.println("Synchronization profile:");
+		for (Record record : records.values())
+			record.print();
+
+		printWaitsFor();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Print the threads that are blocked on named primitives, and any deadlock
+	 * among them.
+	 */
+	private static void printWaitsFor() {
+		System.out.println("Waits-for graph:");
+		if (waiting.isEmpty()) {
+			System.out.println("\t(no waiting threads)");
+			return;
+		}
+
+		for (Map.Entry<KThread, Wait> entry : waiting.entrySet()) {
+			Wait wait = entry.getValue();
+			String line = "\t" + entry.getKey() + " -> " + wait.record.key;
+			KThread holder = wait.getHolder();
+			if (holder != null)
+				line += " held by " + holder;
+			System.out.println(line);
+		}
+
+		// follow thread -> lock -> holder edges looking for cycles
+		HashSet<KThread> reported = new HashSet<KThread>();
+		for (KThread start : waiting.keySet()) {
+			if (reported.contains(start))
+				continue;
+
+			String cycle = "" + start;
+			KThread thread = start;
+			for (int i = 0; i < waiting.size(); i++) {
+				Wait wait = waiting.get(thread);
+				KThread holder = (wait == null) ? null : wait.getHolder();
+				if (holder == null)
+					break;
+
+				cycle += " -> " + wait.record.key + " -> " + holder;
+				if (holder == start) {
+					System.out.println("\tDEADLOCK: " + cycle);
+					for (thread = start;; thread = waiting.get(thread)
+							.getHolder()) {
+						if (!reported.add(thread))
+							break;
+					}
+					break;
+				}
+				thread = holder;
+			}
+		}
+	}
+
+	/**
+	 * The statistics shared by all primitives with the same kind and name.
+	 */
+	static class Record {
+		Record(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Record that the current thread is about to block on <i>lock</i>, or
+		 * on some other primitive if <i>lock</i> is <tt>null</tt>.
+		 */
+		void startWait(Lock lock) {
+			boolean intStatus = Machine.interrupt().disable();
+
+			waiting.put(KThread.currentThread(), new Wait(this, lock));
+
+			Machine.interrupt().restore(intStatus);
+		}
+
+		/**
+		 * Record that the current thread stopped waiting, and count it as an
+		 * acquisition after the time it waited.
+		 */
+		void endWait() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			Wait wait = waiting.remove(KThread.currentThread());
+			Lib.assertTrue(wait != null && wait.record == this);
+			numWaits++;
+			acquired(Machine.timer().getTime() - wait.start);
+
+			Machine.interrupt().restore(intStatus);
+		}
+
+		/**
+		 * Record an acquisition by the current thread after waiting
+		 * <i>ticks</i> ticks.
+		 */
+		void acquired(long ticks) {
+			boolean intStatus = Machine.interrupt().disable();
+
+			numAcquisitions++;
+			waitTicks += ticks;
+			maxWaitTicks = Math.max(maxWaitTicks, ticks);
+
+			int bucket = 64 - Long.numberOfLeadingZeros(ticks);
+			histogram[Math.min(bucket, numBuckets - 1)]++;
+
+			// keyed by name, so finished threads and their processes can be
+			// collected
+			if (ThreadedKernel.printLockStats) {
+				String thread = KThread.currentThread().toString();
+				int[] count = acquirers.get(thread);
+				if (count == null && acquirers.size() < maxAcquirers) {
+					count = new int[1];
+					acquirers.put(thread, count);
+				}
+				if (count != null)
+					count[0]++;
+				else
+					numOtherAcquisitions++;
+			}
+
+			Machine.interrupt().restore(intStatus);
+		}
+
+		void print() {
+			System.out.println("\t" + key + ": " + numAcquisitions
+					+ " acquisitions, " + numWaits + " waits, " + waitTicks
+					+ " wait ticks, max wait " + maxWaitTicks);
+
+			String buckets = "";
+			for (int i = 0; i < numBuckets; i++) {
+				if (histogram[i] == 0)
+					continue;
+				String bound = (i == numBuckets - 1) ? "more" : "<"
+						+ (1L << i);
+				buckets += " " + bound + ":" + histogram[i];
+			}
+			if (numWaits > 0)
+				System.out.println("\t\twait ticks" + buckets);
+
+			ArrayList<Map.Entry<String, int[]>> byCount = new ArrayList<Map.Entry<String, int[]>>(
+					acquirers.entrySet());
+			Collections.sort(byCount, new Comparator<Map.Entry<String, int[]>>() {
+				public int compare(Map.Entry<String, int[]> a,
+						Map.Entry<String, int[]> b) {
+					return b.getValue()[0] - a.getValue()[0];
+				}
+			});
+
+			String threads = "";
+			for (int i = 0; i < byCount.size() && i < maxThreadsPrinted; i++)
+				threads += (i == 0 ? " " : ", ") + byCount.get(i).getKey()
+						+ " " + byCount.get(i).getValue()[0];
+			if (byCount.size() > maxThreadsPrinted)
+				threads += ", " + (byCount.size() - maxThreadsPrinted)
+						+ " more";
+			if (numOtherAcquisitions > 0)
+				threads += ", other threads " + numOtherAcquisitions;
+			if (!byCount.isEmpty())
+				System.out.println("\t\tacquired by" + threads);
+		}
+
+		String key;
+
+		int numAcquisitions = 0, numWaits = 0;
+
+		long waitTicks = 0, maxWaitTicks = 0;
+
+		/** Bucket <i>i</i> counts waits of less than 2<sup>i</sup> ticks. */
+		long[] histogram = new long[numBuckets];
+
+		/**
+		 * Acquisitions by each thread, by name, when
+		 * <tt>ThreadedKernel.printLockStats</tt> is set. Threads beyond the
+		 * first <tt>maxAcquirers</tt> are counted together.
+		 */
+		LinkedHashMap<String, int[]> acquirers = new LinkedHashMap<String, int[]>();
+
+		int numOtherAcquisitions = 0;
+	}
+
+	/**
+	 * An edge in the waits-for graph.
+	 */
+	private static class Wait {
+		Wait(Record record, Lock lock) {
+			this.record = record;
+			this.lock = lock;
+		}
+
+		KThread getHolder() {
+			return (lock == null) ? null : lock.getHolder();
+		}
+
+		Record record;
+
+		Lock lock;
+
+		long start = Machine.timer().getTime();
+	}
+
+	private static final int numBuckets = 16;
+
+	private static final int maxThreadsPrinted = 8;
+
+	private static final int maxAcquirers = 64;
+
+	private static LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>();
+
+	private static LinkedHashMap<KThread, Wait> waiting = new LinkedHashMap<KThread, Wait>();
+}
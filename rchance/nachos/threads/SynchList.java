@@ -1,25 +1,42 @@
 package nachos.threads;
 
-import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue, stored in a circular array. A queue may be unbounded,
+ * in which case the array grows as needed and <tt>add()</tt> never blocks, or
+ * bounded, in which case adding to a full queue blocks until a slot frees up.
  */
 public class SynchList {
 	/**
-	 * Allocate a new synchronized queue.
+	 * Allocate a new, unbounded synchronized queue.
 	 */
 	public SynchList() {
-		list = new LinkedList<Object>();
+		this(unbounded);
+	}
+
+	/**
+	 * Allocate a new synchronized queue that holds at most <i>capacity</i>
+	 * objects.
+	 * 
+	 * @param capacity the maximum number of objects in the queue, or
+	 * <tt>unbounded</tt>.
+	 */
+	public SynchList(int capacity) {
+		Lib.assertTrue(capacity > 0 || capacity == unbounded);
+
+		this.capacity = capacity;
+		items = new Object[capacity == unbounded ? initialSize : capacity];
 		lock = new Lock();
-		listEmpty = new Condition(lock);
+		listEmpty = new Condition2(lock);
+		listFull = new Condition2(lock);
 	}
 
 	/**
-	 * Add the specified object to the end of the queue. If another thread is
-	 * waiting in <tt>removeFirst()</tt>, it is woken up.
+	 * Add the specified object to the end of the queue, blocking until there
+	 * is room if the queue is full. If another thread is waiting in
+	 * <tt>removeFirst()</tt>, it is woken up.
 	 * 
 	 * @param o the object to add. Must not be <tt>null</tt>.
 	 */
@@ -27,11 +44,65 @@ public class SynchList {
 		Lib.assertTrue(o != null);
 
 		lock.acquire();
-		list.add(o);
+		while (isFull())
+			listFull.sleep();
+		enqueue(o);
 		listEmpty.wake();
 		lock.release();
 	}
 
+	/**
+	 * Add the specified object to the end of the queue, unless the queue is
+	 * full.
+	 * 
+	 * @param o the object to add. Must not be <tt>null</tt>.
+	 * @return <tt>true</tt> if the object was added.
+	 */
+	public boolean tryAdd(Object o) {
+		Lib.assertTrue(o != null);
+
+		lock.acquire();
+		boolean added = !isFull();
+		if (added) {
+			enqueue(o);
+			listEmpty.wake();
+		}
+		lock.release();
+
+		return added;
+	}
+
+	/**
+	 * Add every object in <i>objects</i> to the end of the queue, in order.
+	 * Adds as many as fit at a time, blocking while the queue is full. Each
+	 * time it adds more than one object it wakes every waiting thread, rather
+	 * than one per object; a single object wakes one thread.
+	 * 
+	 * @param objects the objects to add. None may be <tt>null</tt>.
+	 */
+	public void addAll(Object[] objects) {
+		int i = 0;
+
+		lock.acquire();
+		while (i < objects.length) {
+			while (isFull())
+				listFull.sleep();
+
+			int added = 0;
+			while (i < objects.length && !isFull()) {
+				Lib.assertTrue(objects[i] != null);
+				enqueue(objects[i++]);
+				added++;
+			}
+
+			if (added == 1)
+				listEmpty.wake();
+			else
+				listEmpty.wakeAll();
+		}
+		lock.release();
+	}
+
 	/**
 	 * Remove an object from the front of the queue, blocking until the queue is
 	 * non-empty if necessary.
@@ -42,14 +113,92 @@ public class SynchList {
 		Object o;
 
 		lock.acquire();
-		while (list.isEmpty())
+		while (size == 0)
 			listEmpty.sleep();
-		o = list.removeFirst();
+		o = dequeue();
+		if (capacity != unbounded)
+			listFull.wake();
+		lock.release();
+
+		return o;
+	}
+
+	/**
+	 * Remove an object from the front of the queue, if there is one. Does not
+	 * block.
+	 * 
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue is empty.
+	 */
+	public Object tryRemove() {
+		Object o = null;
+
+		lock.acquire();
+		if (size > 0) {
+			o = dequeue();
+			if (capacity != unbounded)
+				listFull.wake();
+		}
 		lock.release();
 
 		return o;
 	}
 
+	/**
+	 * Remove up to <tt>buf.length</tt> objects from the front of the queue
+	 * into <i>buf</i>, in order. Does not block.
+	 * 
+	 * @param buf the array to store the removed objects in.
+	 * @return the number of objects removed.
+	 */
+	public int drainTo(Object[] buf) {
+		lock.acquire();
+		int amount = Math.min(buf.length, size);
+		for (int i = 0; i < amount; i++)
+			buf[i] = dequeue();
+		if (amount > 0 && capacity != unbounded)
+			listFull.wakeAll();
+		lock.release();
+
+		return amount;
+	}
+
+	/**
+	 * Return the number of objects in the queue.
+	 * 
+	 * @return the number of objects in the queue.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private boolean isFull() {
+		return capacity != unbounded && size == capacity;
+	}
+
+	private void enqueue(Object o) {
+		if (size == items.length) {
+			Lib.assertTrue(capacity == unbounded);
+
+			Object[] grown = new Object[items.length * 2];
+			for (int i = 0; i < size; i++)
+				grown[i] = items[(head + i) % items.length];
+			items = grown;
+			head = 0;
+		}
+
+		items[(head + size) % items.length] = o;
+		size++;
+	}
+
+	private Object dequeue() {
+		Object o = items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		size--;
+		return o;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -80,11 +229,61 @@ public class SynchList {
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+
+		boundedTest();
 	}
 
-	private LinkedList<Object> list;
+	/**
+	 * Test that a bounded queue blocks a producer when full, and that batch
+	 * operations keep objects in order.
+	 */
+	private static void boundedTest() {
+		final SynchList queue = new SynchList(4);
+		final Integer[] objects = new Integer[20];
+		for (int i = 0; i < objects.length; i++)
+			objects[i] = new Integer(i);
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				queue.addAll(objects);
+			}
+		}).setName("bounded producer");
+		producer.fork();
+
+		Object[] buf = new Object[3];
+		int next = 0;
+		while (next < objects.length) {
+			Lib.assertTrue(queue.size() <= 4, "Bounded queue overfilled");
+
+			int n = queue.drainTo(buf);
+			if (n == 0) {
+				buf[0] = queue.removeFirst();
+				n = 1;
+			}
+			for (int i = 0; i < n; i++)
+				Lib.assertTrue(buf[i] == objects[next++]);
+		}
+
+		producer.join();
+		Lib.assertTrue(queue.tryRemove() == null);
+		Lib.assertTrue(queue.tryAdd(objects[0]));
+		Lib.assertTrue(queue.tryRemove() == objects[0]);
+	}
+
+	/** The capacity of a queue that grows without bound. */
+	public static final int unbounded = -1;
+
+	private static final int initialSize = 8;
+
+	private int capacity;
+
+	private Object[] items;
+
+	private int head = 0, size = 0;
 
 	private Lock lock;
 
-	private Condition listEmpty;
+	private Condition2 listEmpty;
+
+	private Condition2 listFull;
 }
@@ -0,0 +1,275 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A fixed set of worker threads that run small kernel tasks, so that kernel
+ * code can work asynchronously without forking a <tt>KThread</tt> per task.
+ *
+ * <p>
+ * Each worker owns a deque of tasks. A worker takes its newest task from the
+ * back of its own deque, and when its deque is empty it steals the oldest task
+ * from the front of another worker's deque. Tasks submitted by a worker go to
+ * that worker's own deque; tasks submitted by other threads are spread over
+ * the workers in turn. Like <tt>Semaphore</tt>, the pool synchronizes by
+ * disabling interrupts, and idle workers sleep on a thread queue.
+ *
+ * <p>
+ * <tt>submit()</tt> returns a <tt>Future</tt>, which any thread can wait on.
+ * A worker waiting on a future runs other queued tasks meanwhile, so tasks may
+ * submit subtasks and wait for them without deadlocking the pool.
+ */
+public class ThreadPool {
+	/**
+	 * Allocate a new thread pool and fork its workers.
+	 *
+	 * @param numWorkers the number of worker threads.
+	 */
+	public ThreadPool(int numWorkers) {
+		Lib.assertTrue(numWorkers > 0);
+
+		workers = new Worker[numWorkers];
+		for (int i = 0; i < workers.length; i++)
+			workers[i] = new Worker(i);
+
+		for (int i = 0; i < workers.length; i++)
+			workers[i].thread.fork();
+	}
+
+	/**
+	 * Queue <i>task</i> to be run by one of the workers.
+	 *
+	 * @param task the task to run. Must not be <tt>null</tt>.
+	 * @return a future that completes when the task has run.
+	 */
+	public Future submit(Runnable task) {
+		Lib.assertTrue(task != null);
+
+		Future future = new Future(task);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(!shutdown);
+
+		Worker self = currentWorker();
+		if (self != null) {
+			self.deque.addLast(future);
+		}
+		else {
+			workers[nextWorker].deque.addLast(future);
+			nextWorker = (nextWorker + 1) % workers.length;
+		}
+
+		KThread idle = idleQueue.nextThread();
+		if (idle != null)
+			idle.ready();
+
+		Machine.interrupt().restore(intStatus);
+
+		return future;
+	}
+
+	/**
+	 * Let the workers finish every queued task, then wait for them to exit. No
+	 * tasks may be submitted afterwards. Must not be called by a worker.
+	 */
+	public void shutdown() {
+		Lib.assertTrue(currentWorker() == null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		shutdown = true;
+
+		KThread idle;
+		while ((idle = idleQueue.nextThread()) != null)
+			idle.ready();
+
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < workers.length; i++)
+			workers[i].thread.join();
+
+		Lib.debug(dbgPool, "Thread pool shut down, " + numSteals + " steals");
+	}
+
+	/**
+	 * Return the worker that is the current thread, or <tt>null</tt> if the
+	 * current thread does not belong to this pool.
+	 */
+	private Worker currentWorker() {
+		KThread thread = KThread.currentThread();
+		for (int i = 0; i < workers.length; i++) {
+			if (workers[i].thread == thread)
+				return workers[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Take the next task for <i>worker</i>: the newest task on its own deque,
+	 * or else the oldest task on another worker's deque. Must be called with
+	 * interrupts disabled.
+	 *
+	 * @return the task, or <tt>null</tt> if every deque is empty.
+	 */
+	private Future takeTask(Worker worker) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (!worker.deque.isEmpty())
+			return worker.deque.removeLast();
+
+		for (int i = 1; i < workers.length; i++) {
+			Worker victim = workers[(worker.index + i) % workers.length];
+			if (!victim.deque.isEmpty()) {
+				numSteals++;
+				return victim.deque.removeFirst();
+			}
+		}
+
+		return null;
+	}
+
+	private class Worker implements Runnable {
+		Worker(int index) {
+			this.index = index;
+			thread = new KThread(this).setName("pool worker " + index);
+		}
+
+		public void run() {
+			while (true) {
+				boolean intStatus = Machine.interrupt().disable();
+
+				Future task = takeTask(this);
+				while (task == null && !shutdown) {
+					idleQueue.waitForAccess(thread);
+					KThread.sleep();
+					task = takeTask(this);
+				}
+
+				Machine.interrupt().restore(intStatus);
+
+				if (task == null)
+					return;
+
+				task.run();
+			}
+		}
+
+		int index;
+
+		KThread thread;
+
+		LinkedList<Future> deque = new LinkedList<Future>();
+	}
+
+	/**
+	 * The pending completion of a task submitted to a <tt>ThreadPool</tt>.
+	 */
+	public class Future {
+		Future(Runnable task) {
+			this.task = task;
+		}
+
+		/**
+		 * Test whether the task has finished running.
+		 *
+		 * @return <tt>true</tt> if the task has finished.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Wait for the task to finish. If the current thread is one of the
+		 * pool's workers, it runs other queued tasks while it waits.
+		 */
+		public void get() {
+			Worker self = currentWorker();
+
+			while (self != null && !done) {
+				boolean intStatus = Machine.interrupt().disable();
+				Future other = takeTask(self);
+				Machine.interrupt().restore(intStatus);
+
+				// the task is running on another worker; block below
+				if (other == null)
+					break;
+
+				other.run();
+			}
+
+			// pass the wakeup on to the next waiter
+			finished.P();
+			finished.V();
+		}
+
+		void run() {
+			task.run();
+			done = true;
+			finished.V();
+		}
+
+		private Runnable task;
+
+		private boolean done = false;
+
+		private Semaphore finished = new Semaphore(0);
+	}
+
+	/**
+	 * Tests whether this module is working.
+	 */
+	public static void selfTest() {
+		final ThreadPool pool = new ThreadPool(4);
+		final int[] count = new int[1];
+
+		Future[] futures = new Future[20];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = pool.submit(new Runnable() {
+				public void run() {
+					KThread.yield();
+					count[0]++;
+				}
+			});
+		}
+
+		// a task that forks subtasks and waits for them
+		Future parent = pool.submit(new Runnable() {
+			public void run() {
+				Future[] children = new Future[8];
+				for (int i = 0; i < children.length; i++) {
+					children[i] = pool.submit(new Runnable() {
+						public void run() {
+							count[0]++;
+						}
+					});
+				}
+				for (int i = 0; i < children.length; i++)
+					children[i].get();
+			}
+		});
+
+		for (int i = 0; i < futures.length; i++)
+			futures[i].get();
+		parent.get();
+
+		Lib.assertTrue(count[0] == 28, "Expected 28 tasks to run");
+
+		pool.shutdown();
+	}
+
+	private Worker[] workers;
+
+	private int nextWorker = 0;
+
+	private boolean shutdown = false;
+
+	private int numSteals = 0;
+
+	private ThreadQueue idleQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private static final char dbgPool = 't';
+}
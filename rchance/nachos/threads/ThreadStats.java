@@ -0,0 +1,140 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Time accounting for one thread (or the sum over several threads). Records
+ * the simulated ticks spent running, ready but waiting for the processor, and
+ * blocked. Blocked time is broken down by the reason the thread went to sleep,
+ * one of the <tt>blockedZZZ</tt> constants.
+ *
+ * @see nachos.threads.KThread#getStats
+ */
+public class ThreadStats {
+	/**
+	 * Allocate a new, zeroed statistics object.
+	 */
+	public ThreadStats() {
+	}
+
+	/**
+	 * Allocate a new statistics object, copying the contents of an existing
+	 * one.
+	 *
+	 * @param stats the statistics to copy.
+	 */
+	public ThreadStats(ThreadStats stats) {
+		add(stats);
+	}
+
+	/**
+	 * Add the ticks recorded in <i>stats</i> to this object.
+	 *
+	 * @param stats the statistics to add.
+	 */
+	public void add(ThreadStats stats) {
+		runningTicks += stats.runningTicks;
+		readyTicks += stats.readyTicks;
+		for (int i = 0; i < numReasons; i++)
+			blockedTicks[i] += stats.blockedTicks[i];
+	}
+
+	/**
+	 * Return the number of ticks spent running.
+	 *
+	 * @return the number of ticks spent running.
+	 */
+	public long getRunningTicks() {
+		return runningTicks;
+	}
+
+	/**
+	 * Return the number of ticks spent on the ready queue.
+	 *
+	 * @return the number of ticks spent ready but not running.
+	 */
+	public long getReadyTicks() {
+		return readyTicks;
+	}
+
+	/**
+	 * Return the number of ticks spent blocked for the specified reason.
+	 *
+	 * @param reason one of the <tt>blockedZZZ</tt> constants.
+	 * @return the number of ticks spent blocked for <i>reason</i>.
+	 */
+	public long getBlockedTicks(int reason) {
+		Lib.assertTrue(reason >= 0 && reason < numReasons);
+		return blockedTicks[reason];
+	}
+
+	/**
+	 * Return the number of ticks spent blocked for any reason.
+	 *
+	 * @return the total number of ticks spent blocked.
+	 */
+	public long getBlockedTicks() {
+		long total = 0;
+		for (int i = 0; i < numReasons; i++)
+			total += blockedTicks[i];
+		return total;
+	}
+
+	/**
+	 * Return a one-line summary of these statistics.
+	 */
+	public String toString() {
+		String s = "running " + runningTicks + ", ready " + readyTicks
+				+ ", blocked " + getBlockedTicks();
+
+		String reasons = "";
+		for (int i = 0; i < numReasons; i++) {
+			if (blockedTicks[i] != 0)
+				reasons += (reasons.length() == 0 ? "" : ", ")
+						+ reasonNames[i] + " " + blockedTicks[i];
+		}
+
+		return (reasons.length() == 0) ? s : s + " (" + reasons + ")";
+	}
+
+	/** Blocked for a reason not listed below. */
+	public static final int blockedOther = 0;
+
+	/** Blocked in <tt>Lock.acquire()</tt>. */
+	public static final int blockedLock = 1;
+
+	/** Blocked in <tt>Semaphore.P()</tt>. */
+	public static final int blockedSemaphore = 2;
+
+	/** Blocked sleeping on a condition variable. */
+	public static final int blockedCondition = 3;
+
+	/** Blocked in <tt>Alarm.waitUntil()</tt>. */
+	public static final int blockedAlarm = 4;
+
+	/** Blocked in <tt>KThread.join()</tt>. */
+	public static final int blockedJoin = 5;
+
+	/** Blocked while servicing a page fault. */
+	public static final int blockedPageFault = 6;
+
+	/** Blocked reading from or writing to the console. */
+	public static final int blockedConsole = 7;
+
+	/** Blocked in the <tt>futex_wait()</tt> system call. */
+	public static final int blockedFutex = 8;
+
+	/** The number of distinct blocking reasons. */
+	public static final int numReasons = 9;
+
+	/** Names of the blocking reasons, for printing. */
+	public static final String[] reasonNames = { "other", "lock", "semaphore",
+			"condition", "alarm", "join", "page fault", "console",
+			"futex" };
+
+	long runningTicks = 0;
+
+	long readyTicks = 0;
+
+	long[] blockedTicks = new long[numReasons];
+}
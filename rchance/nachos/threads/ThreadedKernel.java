@@ -36,6 +36,11 @@ public class ThreadedKernel extends Kernel {
 
 		alarm = new Alarm();
 
+		printThreadStats = Config.getBoolean("ThreadedKernel.printThreadStats",
+				false);
+		printLockStats = Config.getBoolean("ThreadedKernel.printLockStats",
+				false);
+
 		Machine.interrupt().enable();
 	}
 
@@ -54,6 +59,11 @@ public class ThreadedKernel extends Kernel {
 		}
 		Alarm.selfTest();
 		Condition2.selfTest();
+		ThreadPool.selfTest();
+		ReadWriteLock.selfTest();
+		Communicator.selfTest();
+		CountDownLatch.selfTest();
+		Barrier.selfTest();
 	}
 
 	/**
@@ -67,6 +77,13 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (printThreadStats)
+			KThread.printStats();
+		if (printLockStats) {
+			Lock.printStats();
+			SyncProfiler.print();
+		}
+
 		Machine.halt();
 	}
 
@@ -79,6 +96,19 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
+	/**
+	 * <tt>true</tt> if per-thread time accounting should be printed when the
+	 * kernel terminates. Set by <tt>ThreadedKernel.printThreadStats</tt>.
+	 */
+	protected static boolean printThreadStats = false;
+
+	/**
+	 * <tt>true</tt> if the contention statistics of named locks, and the
+	 * <tt>SyncProfiler</tt> records and waits-for graph, should be printed when
+	 * the kernel terminates. Set by <tt>ThreadedKernel.printLockStats</tt>.
+	 */
+	protected static boolean printLockStats = false;
+
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
 
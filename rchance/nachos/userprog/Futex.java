@@ -0,0 +1,98 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel side of the <tt>futex_wait()</tt> and <tt>futex_wake()</tt>
+ * system calls: a hash table of wait queues, keyed by the physical address of
+ * a word of user memory.
+ *
+ * <p>
+ * A user program keeps its synchronization state in ordinary memory and only
+ * enters the kernel when it has to block or wake a blocked thread. Because
+ * the key is a physical address, threads in different processes that share a
+ * page meet on the same queue. The caller must keep the page resident (pinned)
+ * while a thread waits on it, so that its physical address stays the same.
+ */
+public class Futex {
+	private Futex() {
+	}
+
+	/**
+	 * Atomically check that the word at physical address <i>paddr</i> still
+	 * holds <i>expected</i>, and if so, sleep until another thread calls
+	 * <tt>wake()</tt> on the same address.
+	 *
+	 * @param paddr the physical address of the word. Must be word aligned.
+	 * @param expected the value the caller last saw in the word.
+	 * @return <tt>true</tt> if the thread slept and was woken, or
+	 * <tt>false</tt> if the word no longer held <i>expected</i>.
+	 */
+	public static boolean wait(int paddr, int expected) {
+		Lib.assertTrue(paddr % 4 == 0);
+
+		byte[] memory = Machine.processor().getMemory();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean asleep = (Lib.bytesToInt(memory, paddr) == expected);
+		if (asleep) {
+			WaitQueue queue = queues.get(paddr);
+			if (queue == null) {
+				queue = new WaitQueue();
+				queues.put(paddr, queue);
+			}
+
+			queue.numWaiting++;
+			queue.threads.waitForAccess(KThread.currentThread());
+			KThread.sleep(ThreadStats.blockedFutex);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return asleep;
+	}
+
+	/**
+	 * Wake up at most <i>count</i> threads waiting on physical address
+	 * <i>paddr</i>.
+	 *
+	 * @param paddr the physical address of the word. Must be word aligned.
+	 * @param count the maximum number of threads to wake.
+	 * @return the number of threads woken.
+	 */
+	public static int wake(int paddr, int count) {
+		Lib.assertTrue(paddr % 4 == 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int numWoken = 0;
+		WaitQueue queue = queues.get(paddr);
+		if (queue != null) {
+			KThread thread;
+			while (numWoken < count
+					&& (thread = queue.threads.nextThread()) != null) {
+				thread.ready();
+				numWoken++;
+			}
+
+			queue.numWaiting -= numWoken;
+			if (queue.numWaiting == 0)
+				queues.remove(paddr);
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return numWoken;
+	}
+
+	private static class WaitQueue {
+		ThreadQueue threads = ThreadedKernel.scheduler.newThreadQueue(false);
+
+		int numWaiting = 0;
+	}
+
+	/** The queues with waiting threads, by physical address. */
+	private static HashMap<Integer, WaitQueue> queues = new HashMap<Integer, WaitQueue>();
+}
@@ -42,6 +42,7 @@ public class SynchConsole {
 	 */
 	public int readByte(boolean block) {
 		int value;
+		int reason = KThread.setBlockReason(ThreadStats.blockedConsole);
 		boolean intStatus = Machine.interrupt().disable();
 		readLock.acquire();
 
@@ -58,6 +59,7 @@ public class SynchConsole {
 
 		readLock.release();
 		Machine.interrupt().restore(intStatus);
+		KThread.setBlockReason(reason);
 		return value;
 	}
 
@@ -81,10 +83,12 @@ public class SynchConsole {
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value) {
+		int reason = KThread.setBlockReason(ThreadStats.blockedConsole);
 		writeLock.acquire();
 		console.writeByte(value);
 		writeWait.P();
 		writeLock.release();
+		KThread.setBlockReason(reason);
 	}
 
 	/**
@@ -104,13 +108,13 @@ public class SynchConsole {
 
 	private SerialConsole console;
 
-	private Lock readLock = new Lock();
+	private Lock readLock = new Lock("SynchConsole.readLock");
 
-	private Lock writeLock = new Lock();
+	private Lock writeLock = new Lock("SynchConsole.writeLock");
 
-	private Semaphore readWait = new Semaphore(0);
+	private Semaphore readWait = new Semaphore(0, "SynchConsole.readWait");
 
-	private Semaphore writeWait = new Semaphore(0);
+	private Semaphore writeWait = new Semaphore(0, "SynchConsole.writeWait");
 
 	private class File extends OpenFile {
 		File(boolean canRead, boolean canWrite) {
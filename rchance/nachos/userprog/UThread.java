@@ -25,7 +25,11 @@ public class UThread extends KThread {
 	}
 
 	private void runProgram() {
-		process.initRegisters();
+		// a thread made by thread_create() or fork() starts from the
+		// registers its creator stored in userRegisters, which
+		// restoreState() has loaded
+		if (!hasStartRegisters)
+			process.initRegisters();
 		process.restoreState();
 
 		Machine.processor().run();
@@ -72,4 +76,33 @@ public class UThread extends KThread {
 	 * The process to which this thread belongs.
 	 */
 	public UserProcess process;
+
+	/**
+	 * This thread's ID within its process. The thread that runs the program
+	 * from its entry point is thread 0.
+	 */
+	public int tid = 0;
+
+	/**
+	 * The stack slot of a thread made by <tt>thread_create()</tt>, or -1 for
+	 * a thread using the program's main stack.
+	 */
+	int stackSlot = -1;
+
+	/**
+	 * The physical address of the futex word this thread is asleep on, or -1.
+	 */
+	int futexAddr = -1;
+
+	/**
+	 * The status this thread passed to <tt>thread_exit()</tt>, or
+	 * <tt>null</tt>.
+	 */
+	Integer exitStatus = null;
+
+	/**
+	 * <tt>true</tt> if <tt>userRegisters</tt> already holds this thread's
+	 * starting registers, rather than the program's entry point.
+	 */
+	boolean hasStartRegisters = false;
 }
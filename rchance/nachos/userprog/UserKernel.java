@@ -3,7 +3,9 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.TreeMap;
 /**
  * A kernel that can support multiple user processes.
  */
@@ -34,9 +36,9 @@ public class UserKernel extends ThreadedKernel {
 			freePages.add(i);
 		}
 
-		lock = new Lock();
-		executeLock = new Lock();
-		joinLock = new Lock();
+		lock = new AdaptiveLock("UserKernel.lock");
+		executeLock = new Lock("UserKernel.executeLock");
+		joinLock = new Lock("UserKernel.joinLock");
 
 		pinnedPages = new LinkedList<Integer>();
 	}
@@ -90,7 +92,9 @@ public class UserKernel extends ThreadedKernel {
 
 		UserProcess process = ((UThread) KThread.currentThread()).process;
 		int cause = Machine.processor().readRegister(Processor.regCause);
+		process.finishIfExiting();
 		process.handleException(cause);
+		process.finishIfExiting();
 	}
 
 	/**
@@ -115,9 +119,57 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (printThreadStats)
+			printProcessStats();
+
 		super.terminate();
 	}
 
+	/**
+	 * Record that <i>process</i> has started running, so that its statistics
+	 * can be looked up by PID.
+	 */
+	public static void registerProcess(UserProcess process) {
+		liveProcesses.put(process.getPID(), process);
+	}
+
+	/**
+	 * Record that <i>process</i> is exiting, and keep its final statistics.
+	 */
+	public static void unregisterProcess(UserProcess process) {
+		if (liveProcesses.remove(process.getPID()) != null)
+			exitedProcessStats.put(process.getPID(), process.getThreadStats());
+	}
+
+	/**
+	 * Return the time accounting for the specified process, whether it is
+	 * still running or has exited.
+	 * 
+	 * @param pid the process ID.
+	 * @return the process's statistics, or <tt>null</tt> if there is no such
+	 * process.
+	 */
+	public static ThreadStats getProcessStats(int pid) {
+		UserProcess process = liveProcesses.get(pid);
+		if (process != null)
+			return process.getThreadStats();
+
+		return exitedProcessStats.get(pid);
+	}
+
+	/**
+	 * Print the time accounting of every process that has run.
+	 */
+	public static void printProcessStats() {
+		TreeMap<Integer,ThreadStats> all = new TreeMap<Integer,ThreadStats>(exitedProcessStats);
+		for (UserProcess process : liveProcesses.values())
+			all.put(process.getPID(), process.getThreadStats());
+
+		System.out.println("Process times (ticks):");
+		for (Integer pid : all.keySet())
+			System.out.println("\tprocess " + pid + ": " + all.get(pid));
+	}
+
 
 	/**
  	 * Returns physical page number from top of list of free pages
@@ -178,6 +230,10 @@ public class UserKernel extends ThreadedKernel {
 
 	private static int pid = 0;
 
+	private static HashMap<Integer,UserProcess> liveProcesses = new HashMap<Integer,UserProcess>();
+
+	private static HashMap<Integer,ThreadStats> exitedProcessStats = new HashMap<Integer,ThreadStats>();
+
 	private static int numProcesses = 0;
 
 	protected static LinkedList<Integer> pinnedPages;
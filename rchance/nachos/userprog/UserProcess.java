@@ -6,6 +6,8 @@ import nachos.userprog.*;
 import nachos.vm.*;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.lang.String;
 import java.io.EOFException;
 
@@ -38,8 +40,8 @@ public class UserProcess {
 
 		pid = UserKernel.issuePID();
 
-		joinCondition = new Condition(UserKernel.joinLock);
-		waitForPage = new Condition(VMKernel.noFreePageLock);
+		joinCondition = new Condition(UserKernel.joinLock,
+				"UserProcess.joinCondition");
 	}
 
 	/**
@@ -78,11 +80,33 @@ public class UserProcess {
 		if (!load(name, args))
 			return false;
 
-		new UThread(this).setName(name).fork();
+		UThread thread = new UThread(this);
+		thread.tid = nextTid++;
+		threads.add(thread);
+		joinableThreads.put(thread.tid, thread);
+		numLiveThreads++;
+		UserKernel.registerProcess(this);
+
+		thread.setName(name).fork();
 
 		return true;
 	}
 
+	/**
+	 * Return the time accounting for this process: the sum over all of its
+	 * threads of the ticks spent running, ready, and blocked.
+	 * 
+	 * @return a snapshot of this process's statistics.
+	 */
+	public ThreadStats getThreadStats() {
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadStats total = new ThreadStats(finishedThreadStats);
+		for (KThread thread : threads)
+			total.add(thread.getStats());
+		Machine.interrupt().restore(intStatus);
+		return total;
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -95,7 +119,9 @@ public class UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		Machine.processor().setPageTable(pageTable);
+		// once the process is exiting, any user access by a remaining thread
+		// faults, sending it into the kernel to finish
+		Machine.processor().setPageTable(exiting ? noPages : pageTable);
 	}
 
 	/**
@@ -185,8 +211,7 @@ public class UserProcess {
 			if(ppage != -1) {
 				UserKernel.pinnedPages.remove(Integer.valueOf(ppage));
 
-				if(VMKernel.waitingForPage == true)
-					waitForPage.wake();
+				VMKernel.wakePageWaiters();
 			}
 		}
 		return numRead;
@@ -235,6 +260,7 @@ public class UserProcess {
 				Machine.processor().writeRegister(Processor.regBadVAddr,vaddr);
 				handleException(Processor.exceptionPageFault);
 			}
+			breakCopyOnWrite(vpn);
 			ppage = pageTable[Machine.processor().pageFromAddress(vaddr)].ppn;
 			
 			UserKernel.pinnedPages.add(ppage);
@@ -254,8 +280,7 @@ public class UserProcess {
 			if(ppage != -1) {
 				UserKernel.pinnedPages.remove(Integer.valueOf(ppage));
 
-				if(VMKernel.waitingForPage == true)
-					waitForPage.wake();
+				VMKernel.wakePageWaiters();
 			}
 		}
 		return numWritten;
@@ -274,6 +299,8 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
+		coffName = name;
+
 		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
 		if (executable == null) {
 			Lib.debug(dbgProcess, "\topen failed");
@@ -328,6 +355,9 @@ public class UserProcess {
 		if (!loadSections())
 			return false;
 
+		// stacks for threads made by thread_create() are added above
+		threadStacksVPN = numPages;
+
 		// store arguments in last page
 		int entryOffset = (numPages - 1) * pageSize;
 		int stringOffset = entryOffset + args.length * 4;
@@ -397,6 +427,81 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Add <i>count</i> pages of zeroed memory to the end of this process's
+	 * address space.
+	 * 
+	 * @param count the number of pages to add.
+	 * @return <tt>true</tt> if the pages were added.
+	 */
+	protected boolean growAddressSpace(int count) {
+		byte[] memory = Machine.processor().getMemory();
+
+		UserKernel.lock.acquire();
+
+		if (count > UserKernel.getNumFreePages()) {
+			UserKernel.lock.release();
+			return false;
+		}
+
+		TranslationEntry[] grown = Arrays.copyOf(pageTable, numPages + count);
+		for (int vpn = numPages; vpn < grown.length; vpn++) {
+			int ppn = UserKernel.getFreePage();
+			Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+			grown[vpn] = new TranslationEntry(vpn, ppn, true, false, false,
+					false);
+		}
+		pageTable = grown;
+		numPages = grown.length;
+
+		UserKernel.lock.release();
+
+		return true;
+	}
+
+	/**
+	 * Give <i>child</i>, a new process being forked from this one, a copy of
+	 * this process's address space. Copies every page into newly allocated
+	 * physical memory.
+	 * 
+	 * @param child the new process.
+	 * @return <tt>true</tt> if there was enough memory for the copy.
+	 */
+	protected boolean copyAddressSpace(UserProcess child) {
+		byte[] memory = Machine.processor().getMemory();
+
+		UserKernel.lock.acquire();
+
+		if (numPages > UserKernel.getNumFreePages()) {
+			UserKernel.lock.release();
+			return false;
+		}
+
+		child.pageTable = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			int ppn = UserKernel.getFreePage();
+			System.arraycopy(memory, pageTable[vpn].ppn * pageSize, memory,
+					ppn * pageSize, pageSize);
+			child.pageTable[vpn] = new TranslationEntry(pageTable[vpn]);
+			child.pageTable[vpn].ppn = ppn;
+		}
+		child.numPages = numPages;
+
+		UserKernel.lock.release();
+
+		return true;
+	}
+
+	/**
+	 * Called before the kernel writes to page <i>vpn</i> on this process's
+	 * behalf, so that a page shared with another process can be copied
+	 * first. This process never shares pages, so this does nothing.
+	 * 
+	 * @param vpn the virtual page about to be written.
+	 */
+	protected void breakCopyOnWrite(int vpn) {
+	}
+
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
@@ -440,7 +545,7 @@ public class UserProcess {
 
 		if(this.getPID() != 0) return -1;
 
-		Machine.halt();
+		Kernel.kernel.terminate();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
 		return 0;
@@ -454,19 +559,50 @@ public class UserProcess {
 		Machine.autoGrader().finishingCurrentProcess(status);
 		// ...and leave it as the top of handleExit so that we
 		// can grade your implementation.
+
+		// the other threads finish as they next enter or leave the kernel,
+		// and the last thread to finish cleans up the process
+		threadLock.acquire();
+		if (exiting) {
+			threadLock.release();
+			finishThread();
+		}
+		exiting = true;
+		exitStatus = status;
+
+		// threads asleep on a futex word would never get back to the kernel
+		// boundary; any other thread sharing the word sees a spurious wakeup
+		for (UThread thread : threads) {
+			if (thread.futexAddr != -1)
+				Futex.wake(thread.futexAddr, Integer.MAX_VALUE);
+		}
+		threadLock.release();
+
+		finishThread();
+		return 0;
+	}
+
+	/**
+	 * Release this process's memory and files and report its exit status to
+	 * its parent. Called by the last thread of the process to finish. Never
+	 * returns.
+	 */
+	private void finishProcess() {
 		unloadSections();
 		UserKernel.lock.acquire();
 		if(parentProcess != null) {
 			if(unhandledException) 
 				parentProcess.childExitStatus.put(this.getPID(),null);
 			else
-				parentProcess.childExitStatus.put(this.getPID(),status);
+				parentProcess.childExitStatus.put(this.getPID(),exitStatus);
 			if(parentProcess.joinedProcess == this.getPID())
 				parentProcess.joinCondition.wake();		
 		}
 
 		coff.close();
 
+		UserKernel.unregisterProcess(this);
+
 		if(UserKernel.exitProcess() == 0) {
 
 			UserKernel.lock.release();
@@ -477,13 +613,14 @@ public class UserProcess {
 			UserKernel.lock.release();
 			KThread.finish(); 		
 		}
-		return 0;
 	}
 
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallFutexWait = 13, syscallFutexWake = 14,
+			syscallThreadCreate = 15, syscallThreadJoin = 16,
+			syscallThreadExit = 17, syscallFork = 18;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -537,6 +674,31 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  futex_wait(int *addr, int expected);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  futex_wake(int *addr, int count);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  __thread_create(void (*start)(), int arg0, int arg1);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>16</td>
+	 * <td><tt>int  thread_join(int tid, int *status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>17</td>
+	 * <td><tt>void thread_exit(int status);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>18</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -568,6 +730,18 @@ public class UserProcess {
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
+		case syscallFutexWait:
+			return handleFutexWait(a0, a1);
+		case syscallFutexWake:
+			return handleFutexWake(a0, a1);
+		case syscallThreadCreate:
+			return handleThreadCreate(a0, a1, a2);
+		case syscallThreadJoin:
+			return handleThreadJoin(a0, a1);
+		case syscallThreadExit:
+			return handleThreadExit(a0);
+		case syscallFork:
+			return handleFork();
 
 		default:
 			unloadSections();
@@ -644,6 +818,89 @@ public class UserProcess {
 	}
 
 
+	/**
+	 * Handle the fork() system call: start a child process that is a copy of
+	 * this one, running a copy of the calling thread. Returns the child's
+	 * process ID to the parent and 0 to the child, or -1 if the child could
+	 * not be created.
+	 */
+	private int handleFork() {
+		UThread parentThread = (UThread) KThread.currentThread();
+		Processor processor = Machine.processor();
+
+		// the child reads its own copy of the executable's header
+		OpenFile executable = ThreadedKernel.fileSystem.open(coffName, false);
+		if (executable == null)
+			return -1;
+
+		UserProcess child = newUserProcess();
+		try {
+			child.coff = new Coff(executable);
+		}
+		catch (EOFException e) {
+			executable.close();
+			UserKernel.exitProcess();
+			return -1;
+		}
+
+		if (!copyAddressSpace(child)) {
+			child.coff.close();
+			UserKernel.exitProcess();
+			return -1;
+		}
+
+		child.coffName = coffName;
+		child.initialPC = initialPC;
+		child.initialSP = initialSP;
+		child.argc = argc;
+		child.argv = argv;
+
+		// files other than the console are reopened at the same position
+		for (int fd = 0; fd < openFiles.length; fd++) {
+			if (openFiles[fd] == null) {
+				if (child.openFiles[fd] != null)
+					child.openFiles[fd].close();
+				child.openFiles[fd] = null;
+			}
+			else if (fd > 1) {
+				child.openFiles[fd] = ThreadedKernel.fileSystem.open(
+						openFiles[fd].getName(), false);
+				if (child.openFiles[fd] != null)
+					child.openFiles[fd].seek(openFiles[fd].tell());
+			}
+		}
+
+		// the child has only the forking thread; its stack slot stays in use
+		child.threadStacksVPN = threadStacksVPN;
+		child.numStackSlots = numStackSlots;
+		for (int slot = 0; slot < numStackSlots; slot++) {
+			if (slot != parentThread.stackSlot)
+				child.freeStackSlots.add(slot);
+		}
+
+		UThread thread = new UThread(child);
+		thread.tid = child.nextTid++;
+		thread.stackSlot = parentThread.stackSlot;
+		thread.hasStartRegisters = true;
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			thread.userRegisters[i] = processor.readRegister(i);
+		thread.userRegisters[Processor.regV0] = 0;
+		thread.userRegisters[Processor.regPC] = processor
+				.readRegister(Processor.regNextPC);
+
+		child.threads.add(thread);
+		child.joinableThreads.put(thread.tid, thread);
+		child.numLiveThreads++;
+
+		child.setParent(this);
+		childProcess.add(child.getPID());
+		UserKernel.registerProcess(child);
+
+		thread.setName(parentThread.getName()).fork();
+
+		return child.getPID();
+	}
+
 	private int handleJoin(int processID, int statusPtr) {
 
 		if(!childProcess.contains(processID) || processID < 0) return -1;
@@ -785,6 +1042,226 @@ public class UserProcess {
 	}
 
 
+	/**
+	 * Handle the futex_wait() system call: sleep until woken by futex_wake()
+	 * on the same word, unless the word no longer holds <i>expected</i>.
+	 * Returns 0 after being woken, or -1 if the word had changed or the
+	 * address is bad.
+	 */
+	private int handleFutexWait(int vaddr, int expected) {
+		int paddr = pinFutexWord(vaddr);
+		if (paddr == -1)
+			return -1;
+
+		// an exiting process wakes only threads already asleep, and nothing
+		// blocks between this check and the sleep
+		UThread thread = (UThread) KThread.currentThread();
+		if (exiting) {
+			UserKernel.pinnedPages.remove(Integer.valueOf(Processor
+					.pageFromAddress(paddr)));
+			VMKernel.wakePageWaiters();
+			return -1;
+		}
+
+		// the page stays pinned while we sleep, so wakers find the same paddr
+		thread.futexAddr = paddr;
+		boolean woken = Futex.wait(paddr, expected);
+		thread.futexAddr = -1;
+
+		UserKernel.pinnedPages.remove(Integer.valueOf(Processor
+				.pageFromAddress(paddr)));
+		VMKernel.wakePageWaiters();
+		return woken ? 0 : -1;
+	}
+
+	/**
+	 * Handle the futex_wake() system call: wake at most <i>count</i> threads
+	 * waiting on the word at <i>vaddr</i>. Returns the number of threads
+	 * woken, or -1 if the address is bad.
+	 */
+	private int handleFutexWake(int vaddr, int count) {
+		if (count < 0)
+			return -1;
+
+		int paddr = pinFutexWord(vaddr);
+		if (paddr == -1)
+			return -1;
+
+		int numWoken = Futex.wake(paddr, count);
+
+		UserKernel.pinnedPages.remove(Integer.valueOf(Processor
+				.pageFromAddress(paddr)));
+		VMKernel.wakePageWaiters();
+		return numWoken;
+	}
+
+	/**
+	 * Make the page holding the futex word at <i>vaddr</i> resident, pin it,
+	 * and return the word's physical address, or -1 if <i>vaddr</i> is not a
+	 * word-aligned address in this process.
+	 */
+	private int pinFutexWord(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (vaddr < 0 || vaddr % 4 != 0 || vpn >= pageTable.length
+				|| pageTable[vpn] == null)
+			return -1;
+
+		if (!pageTable[vpn].valid) {
+			Machine.processor().writeRegister(Processor.regBadVAddr, vaddr);
+			handleException(Processor.exceptionPageFault);
+		}
+
+		// waiters and wakers must agree on the frame, so it cannot be shared
+		breakCopyOnWrite(vpn);
+
+		int ppn = pageTable[vpn].ppn;
+		UserKernel.pinnedPages.add(ppn);
+
+		return Processor.makeAddress(ppn, Processor.offsetFromAddress(vaddr));
+	}
+
+	/**
+	 * Handle the thread_create() system call: start a new thread in this
+	 * process at <i>start</i>, with <i>arg0</i> and <i>arg1</i> in its first
+	 * two argument registers and its own stack. Returns the new thread's ID,
+	 * or -1 if the process has too many threads or memory is short.
+	 */
+	private int handleThreadCreate(int start, int arg0, int arg1) {
+		threadLock.acquire();
+
+		if (exiting || numLiveThreads == maxThreads) {
+			threadLock.release();
+			return -1;
+		}
+
+		int slot;
+		if (!freeStackSlots.isEmpty()) {
+			slot = freeStackSlots.removeFirst();
+		}
+		else {
+			if (!growAddressSpace(stackPages)) {
+				threadLock.release();
+				return -1;
+			}
+			Machine.processor().setPageTable(pageTable);
+			slot = numStackSlots++;
+		}
+
+		UThread thread = new UThread(this);
+		thread.tid = nextTid++;
+		thread.stackSlot = slot;
+		thread.hasStartRegisters = true;
+		thread.userRegisters[Processor.regPC] = start;
+		thread.userRegisters[Processor.regSP] = (threadStacksVPN + (slot + 1)
+				* stackPages)
+				* pageSize;
+		thread.userRegisters[Processor.regA0] = arg0;
+		thread.userRegisters[Processor.regA1] = arg1;
+
+		threads.add(thread);
+		joinableThreads.put(thread.tid, thread);
+		numLiveThreads++;
+
+		threadLock.release();
+
+		thread.setName(KThread.currentThread().getName() + " thread "
+				+ thread.tid).fork();
+
+		return thread.tid;
+	}
+
+	/**
+	 * Handle the thread_join() system call: wait for thread <i>tid</i> of this
+	 * process to finish, and store its exit status at <i>statusPtr</i> unless
+	 * it is null. Returns 1, or -1 if <i>tid</i> is not a thread of this
+	 * process that can be joined.
+	 */
+	private int handleThreadJoin(int tid, int statusPtr) {
+		threadLock.acquire();
+		UThread thread = joinableThreads.get(tid);
+		if (thread == KThread.currentThread()
+				|| (thread == null && !threadExitStatus.containsKey(tid))) {
+			threadLock.release();
+			return -1;
+		}
+
+		// each thread can be joined only once
+		Integer status;
+		if (thread == null) {
+			status = threadExitStatus.remove(tid);
+			threadLock.release();
+		}
+		else {
+			joinableThreads.remove(tid);
+			threadLock.release();
+
+			thread.join();
+			status = thread.exitStatus;
+		}
+
+		if (statusPtr != 0 && status != null)
+			writeVirtualMemory(statusPtr, Lib.bytesFromInt(status));
+
+		return 1;
+	}
+
+	/**
+	 * Handle the thread_exit() system call. The last thread to leave a process
+	 * exits the process with <i>status</i>.
+	 */
+	private int handleThreadExit(int status) {
+		((UThread) KThread.currentThread()).exitStatus = status;
+
+		finishThread();
+		return 0;
+	}
+
+	/**
+	 * Called by <tt>UserKernel.exceptionHandler()</tt> when a thread of this
+	 * process enters or is about to leave the kernel. If the process is
+	 * exiting, the thread finishes instead.
+	 */
+	public void finishIfExiting() {
+		if (exiting)
+			finishThread();
+	}
+
+	/**
+	 * Finish the current thread and release its stack slot. The last thread of
+	 * the process to finish exits the process, with the status passed to
+	 * exit(), or else its own status from thread_exit(). Never returns.
+	 */
+	private void finishThread() {
+		UThread thread = (UThread) KThread.currentThread();
+
+		threadLock.acquire();
+		numLiveThreads--;
+		if (thread.stackSlot != -1)
+			freeStackSlots.add(thread.stackSlot);
+
+		// keep only what a later thread_join() needs, not the thread itself
+		boolean intStatus = Machine.interrupt().disable();
+		threads.remove(thread);
+		finishedThreadStats.add(thread.getStats());
+		Machine.interrupt().restore(intStatus);
+		if (joinableThreads.remove(thread.tid) != null)
+			threadExitStatus.put(thread.tid, thread.exitStatus);
+
+		boolean last = (numLiveThreads == 0);
+		if (last && !exiting) {
+			exiting = true;
+			exitStatus = thread.exitStatus;
+		}
+		if (last)
+			threadExitStatus.clear();
+		threadLock.release();
+
+		if (last)
+			finishProcess();
+
+		KThread.finish();
+	}
+
 	public void setParent(UserProcess parent) {
 	
 		this.parentProcess = parent;
@@ -802,6 +1279,9 @@ public class UserProcess {
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The name of the file containing the program. */
+	protected String coffName;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 
@@ -835,9 +1315,45 @@ public class UserProcess {
 
 	private int pid;
 
-	public Condition joinCondition;
+	/** The threads of this process that have not finished. */
+	private LinkedList<UThread> threads = new LinkedList<UThread>();
 
-	public Condition waitForPage;
+	/** The ticks of the threads of this process that have finished. */
+	private ThreadStats finishedThreadStats = new ThreadStats();
+
+	/** Unfinished threads that have not yet been joined, by thread ID. */
+	private HashMap<Integer, UThread> joinableThreads = new HashMap<Integer, UThread>();
+
+	/**
+	 * Exit status of finished threads not yet joined, by thread ID; null for
+	 * a thread that did not call thread_exit().
+	 */
+	private HashMap<Integer, Integer> threadExitStatus = new HashMap<Integer, Integer>();
+
+	/** Protects the thread state of this process. */
+	private Lock threadLock = new Lock();
+
+	private int numLiveThreads = 0, nextTid = 0;
+
+	/** Set once a thread calls exit(); no thread returns to user mode. */
+	private boolean exiting = false;
+
+	/** The status the process exits with, once it is exiting. */
+	private int exitStatus;
+
+	/** The first page of the stack slots for threads. */
+	private int threadStacksVPN;
+
+	private int numStackSlots = 0;
+
+	private LinkedList<Integer> freeStackSlots = new LinkedList<Integer>();
+
+	/** The most threads a process may have alive at once. */
+	private static final int maxThreads = 16;
+
+	private static final TranslationEntry[] noPages = new TranslationEntry[0];
+
+	public Condition joinCondition;
 	
 	private boolean unhandledException = false;
 }
@@ -0,0 +1,116 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * Adaptive replacement. Resident pages are kept on two clocks: <i>T1</i> for
+ * pages used once since they were loaded, and <i>T2</i> for pages used again.
+ * Ghost lists <i>B1</i> and <i>B2</i> remember pages recently evicted from
+ * each clock. A fault on a page in <i>B1</i> means <i>T1</i> was too small,
+ * and a fault on a page in <i>B2</i> means <i>T2</i> was; the target size
+ * <i>p</i> of <i>T1</i> moves accordingly.
+ *
+ * <p>
+ * ARC proper moves a page on every hit, but the kernel sees only page faults
+ * and reference bits. This is therefore ARC's clock form (CAR): a page whose
+ * reference bit is set when the hand reaches it is moved to the tail of
+ * <i>T2</i> instead of being evicted.
+ */
+public class ARCPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new adaptive replacement policy.
+	 */
+	public ARCPolicy() {
+	}
+
+	public void initialize(Frames frames) {
+		super.initialize(frames);
+
+		pageOf = new long[frames.getNumFrames()];
+	}
+
+	public void pageMapped(int ppn, long page) {
+		int c = frames.getNumFrames();
+
+		pageOf[ppn] = page;
+
+		if (b1.contains(page)) {
+			p = Math.min(p + Math.max(1, b2.size() / b1.size()), c);
+			b1.remove(page);
+			t2.addLast(ppn);
+		}
+		else if (b2.contains(page)) {
+			p = Math.max(p - Math.max(1, b1.size() / b2.size()), 0);
+			b2.remove(page);
+			t2.addLast(ppn);
+		}
+		else {
+			// a page not seen recently; make room for it in the history
+			if (t1.size() + b1.size() >= c)
+				removeOldest(b1);
+			else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * c)
+				removeOldest(b2);
+
+			t1.addLast(ppn);
+		}
+	}
+
+	public void frameFreed(int ppn) {
+		if (!t1.remove(Integer.valueOf(ppn)))
+			t2.remove(Integer.valueOf(ppn));
+	}
+
+	public int chooseVictim() {
+		// every frame can be passed over twice: once to clear its bit, and
+		// once more on T2
+		int limit = 2 * (t1.size() + t2.size());
+
+		for (int tries = 0; tries < limit; tries++) {
+			boolean fromT1 = !t1.isEmpty()
+					&& (t1.size() >= Math.max(1, p) || t2.isEmpty());
+			LinkedList<Integer> clock = fromT1 ? t1 : t2;
+
+			int ppn = clock.removeFirst();
+
+			if (!frames.isEvictable(ppn)) {
+				clock.addLast(ppn);
+				continue;
+			}
+
+			if (frames.isReferenced(ppn)) {
+				frames.clearReferenced(ppn);
+				t2.addLast(ppn);
+				continue;
+			}
+
+			(fromT1 ? b1 : b2).add(pageOf[ppn]);
+			return ppn;
+		}
+
+		return -1;
+	}
+
+	private static void removeOldest(LinkedHashSet<Long> ghosts) {
+		Iterator<Long> i = ghosts.iterator();
+		if (i.hasNext()) {
+			i.next();
+			i.remove();
+		}
+	}
+
+	/** The target size of T1. */
+	private int p = 0;
+
+	/** The resident pages, as frames in clock order. */
+	private LinkedList<Integer> t1 = new LinkedList<Integer>(),
+			t2 = new LinkedList<Integer>();
+
+	/** The evicted pages remembered, oldest first. */
+	private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>(),
+			b2 = new LinkedHashSet<Long>();
+
+	/** The page in each frame. */
+	private long[] pageOf;
+}
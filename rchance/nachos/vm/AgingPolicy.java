@@ -0,0 +1,59 @@
+package nachos.vm;
+
+/**
+ * Approximates LRU with an aging counter per frame. Each time a victim is
+ * needed, every counter is shifted right and the frame's reference bit is
+ * shifted in at the top, and then the bit is cleared. The frame with the
+ * smallest counter, the one used least recently as far as the samples show,
+ * is evicted.
+ *
+ * <p>
+ * The counters are aged only at page faults, so a program that stops faulting
+ * keeps its history until memory is short again.
+ */
+public class AgingPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+	}
+
+	public void initialize(Frames frames) {
+		super.initialize(frames);
+
+		age = new int[frames.getNumFrames()];
+	}
+
+	public void pageMapped(int ppn, long page) {
+		// a new page counts as used just now
+		age[ppn] = 1 << 31;
+	}
+
+	public void frameFreed(int ppn) {
+		age[ppn] = 0;
+	}
+
+	public int chooseVictim() {
+		int victim = -1;
+
+		for (int ppn = 0; ppn < age.length; ppn++) {
+			if (!frames.isEvictable(ppn))
+				continue;
+
+			age[ppn] >>>= 1;
+			if (frames.isReferenced(ppn)) {
+				age[ppn] |= 1 << 31;
+				frames.clearReferenced(ppn);
+			}
+
+			// unsigned comparison, so the top bit counts as most recent
+			if (victim == -1 || (age[ppn] ^ Integer.MIN_VALUE) < (age[victim]
+					^ Integer.MIN_VALUE))
+				victim = ppn;
+		}
+
+		return victim;
+	}
+
+	private int[] age;
+}
@@ -0,0 +1,85 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock, or second-chance, algorithm. The hand passes over frames whose
+ * reference bit is set, clearing it, and evicts the first frame it finds
+ * clear.
+ *
+ * <p>
+ * With a hand spread of <i>n</i>, this is the two-handed clock: a leading
+ * hand <i>n</i> frames ahead clears the reference bits instead, so that a page
+ * survives only if it is used between the two hands passing it. In a large
+ * memory this bounds how long the hand takes to find a victim.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new clock policy, with the hand spread given by
+	 * <tt>ClockPolicy.handSpread</tt> (default 0, one hand).
+	 */
+	public ClockPolicy() {
+		this(Config.getInteger("ClockPolicy.handSpread", 0));
+	}
+
+	/**
+	 * Allocate a new clock policy.
+	 *
+	 * @param handSpread the number of frames between the hand that clears
+	 * reference bits and the hand that evicts, or 0 for one hand.
+	 */
+	public ClockPolicy(int handSpread) {
+		Lib.assertTrue(handSpread >= 0);
+
+		this.handSpread = handSpread;
+	}
+
+	public void initialize(Frames frames) {
+		super.initialize(frames);
+
+		Lib.assertTrue(handSpread < frames.getNumFrames());
+	}
+
+	public void pageMapped(int ppn, long page) {
+	}
+
+	public void frameFreed(int ppn) {
+	}
+
+	public int chooseVictim() {
+		int numFrames = frames.getNumFrames();
+
+		// the first sweep may only clear reference bits; the second must
+		// find a frame unless none is evictable
+		for (int scanned = 0; scanned < 2 * numFrames; scanned++) {
+			if (handSpread > 0)
+				clearIfEvictable((hand + handSpread) % numFrames);
+
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (!frames.isEvictable(ppn))
+				continue;
+
+			// give a page used since the hand last passed a second chance
+			if (frames.isReferenced(ppn)) {
+				if (handSpread == 0)
+					frames.clearReferenced(ppn);
+				continue;
+			}
+
+			return ppn;
+		}
+
+		return -1;
+	}
+
+	private void clearIfEvictable(int ppn) {
+		if (frames.isEvictable(ppn))
+			frames.clearReferenced(ppn);
+	}
+
+	private int handSpread;
+
+	private int hand = 0;
+}
@@ -0,0 +1,28 @@
+package nachos.vm;
+
+/**
+ * Evicts frames in turn, skipping frames that cannot be evicted. Once memory
+ * has filled, this evicts the page that was loaded first.
+ */
+public class FIFOPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new FIFO policy.
+	 */
+	public FIFOPolicy() {
+	}
+
+	public void pageMapped(int ppn, long page) {
+	}
+
+	public void frameFreed(int ppn) {
+	}
+
+	public int chooseVictim() {
+		int victim = findEvictable(hand);
+		if (victim != -1)
+			hand = (victim + 1) % frames.getNumFrames();
+		return victim;
+	}
+
+	private int hand = 0;
+}
@@ -0,0 +1,136 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The LRU-K algorithm. Each page keeps the times of its last <i>k</i>
+ * references, and the victim is the page whose <i>k</i>th most recent
+ * reference is oldest. Pages referenced fewer than <i>k</i> times go first,
+ * least recently used first, so a page touched once in a scan does not push
+ * out pages that are used again and again.
+ *
+ * <p>
+ * The kernel does not see individual references, so the history is built
+ * from samples: the fault that loads a page, and the reference bit, which is
+ * read and cleared each time a victim is needed. The first reference bit
+ * seen after a fault is the faulting access itself, so it does not count
+ * again. References between two samples count once, which also serves as
+ * LRU-K's correlated reference period. The history of an evicted page is kept
+ * for a while, so that a page faulted back in soon resumes its history rather
+ * than starting over.
+ */
+public class LRUKPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new LRU-K policy, with <i>k</i> given by
+	 * <tt>LRUKPolicy.k</tt> (default 2).
+	 */
+	public LRUKPolicy() {
+		this(Config.getInteger("LRUKPolicy.k", 2));
+	}
+
+	/**
+	 * Allocate a new LRU-K policy.
+	 *
+	 * @param k the number of references to remember for each page.
+	 */
+	public LRUKPolicy(int k) {
+		Lib.assertTrue(k > 0);
+
+		this.k = k;
+	}
+
+	public void initialize(Frames frames) {
+		super.initialize(frames);
+
+		final int numFrames = frames.getNumFrames();
+		history = new long[numFrames][];
+		page = new long[numFrames];
+		justMapped = new boolean[numFrames];
+		retained = new LinkedHashMap<Long, long[]>() {
+			protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+				return size() > numFrames;
+			}
+		};
+	}
+
+	public void pageMapped(int ppn, long page) {
+		long[] times = retained.remove(page);
+		if (times == null)
+			times = new long[k];
+
+		this.page[ppn] = page;
+		history[ppn] = times;
+		justMapped[ppn] = true;
+		referenced(times, frames.getTime());
+	}
+
+	public void frameFreed(int ppn) {
+		history[ppn] = null;
+	}
+
+	public int chooseVictim() {
+		long now = frames.getTime();
+		int victim = -1;
+
+		for (int ppn = 0; ppn < history.length; ppn++) {
+			if (history[ppn] == null || !frames.isEvictable(ppn))
+				continue;
+
+			if (frames.isReferenced(ppn)) {
+				frames.clearReferenced(ppn);
+				if (!justMapped[ppn])
+					referenced(history[ppn], now);
+			}
+			justMapped[ppn] = false;
+
+			if (victim == -1 || before(history[ppn], history[victim]))
+				victim = ppn;
+		}
+
+		if (victim != -1) {
+			retained.put(page[victim], history[victim]);
+			history[victim] = null;
+		}
+
+		return victim;
+	}
+
+	/**
+	 * Record a reference at time <i>now</i> in <i>times</i>, most recent
+	 * first, unless one was already recorded then.
+	 */
+	private void referenced(long[] times, long now) {
+		if (times[0] == now)
+			return;
+
+		System.arraycopy(times, 0, times, 1, k - 1);
+		times[0] = now;
+	}
+
+	/**
+	 * Test whether a page with history <i>a</i> should be evicted before one
+	 * with history <i>b</i>: its <i>k</i>th most recent reference is older,
+	 * or failing that its most recent one. A time of 0 means no reference.
+	 */
+	private boolean before(long[] a, long[] b) {
+		if (a[k - 1] != b[k - 1])
+			return a[k - 1] < b[k - 1];
+		return a[0] < b[0];
+	}
+
+	private int k;
+
+	/** The last <tt>k</tt> reference times of the page in each frame. */
+	private long[][] history;
+
+	/** The page in each frame. */
+	private long[] page;
+
+	/** Whether each frame's page was loaded since the last sample. */
+	private boolean[] justMapped;
+
+	/** The histories of recently evicted pages, by page. */
+	private LinkedHashMap<Long, long[]> retained;
+}
@@ -0,0 +1,112 @@
+package nachos.vm;
+
+/**
+ * Chooses which physical page to evict when a page fault finds no free page.
+ * The VM kernel creates the policy named by <tt>VMKernel.replacementPolicy</tt>
+ * and reports to it every page it maps into a frame and every frame it frees.
+ *
+ * <p>
+ * A policy sees the frames only through a <tt>Frames</tt> object, so that
+ * <tt>TraceReplay</tt> can run the same policies against a recorded page
+ * reference trace, outside Nachos.
+ *
+ * @see nachos.vm.VMKernel#evictPage
+ * @see nachos.vm.TraceReplay
+ */
+public abstract class ReplacementPolicy {
+	/**
+	 * Allocate a new replacement policy.
+	 */
+	public ReplacementPolicy() {
+	}
+
+	/**
+	 * The frames a policy chooses from, and the state it may examine.
+	 */
+	public interface Frames {
+		/**
+		 * Return the number of physical pages.
+		 */
+		public int getNumFrames();
+
+		/**
+		 * Test whether physical page <i>ppn</i> holds a page that may be evicted
+		 * now. Free, pinned, and half-loaded frames may not be.
+		 */
+		public boolean isEvictable(int ppn);
+
+		/**
+		 * Test whether the page in physical page <i>ppn</i> was used since its
+		 * reference bit was last cleared.
+		 */
+		public boolean isReferenced(int ppn);
+
+		/**
+		 * Clear the reference bit of the page in physical page <i>ppn</i>.
+		 */
+		public void clearReferenced(int ppn);
+
+		/**
+		 * Test whether evicting the page in physical page <i>ppn</i> requires
+		 * writing it to swap.
+		 */
+		public boolean isDirty(int ppn);
+
+		/**
+		 * Return the current time, in units that only increase.
+		 */
+		public long getTime();
+	}
+
+	/**
+	 * Start managing <i>frames</i>, all of which are initially free.
+	 *
+	 * @param frames the frames to choose victims from.
+	 */
+	public void initialize(Frames frames) {
+		this.frames = frames;
+	}
+
+	/**
+	 * Note that the page identified by <i>page</i> was just loaded into
+	 * physical page <i>ppn</i>.
+	 *
+	 * @param ppn the frame that now holds the page.
+	 * @param page an identifier for the page, unique across processes.
+	 */
+	public abstract void pageMapped(int ppn, long page);
+
+	/**
+	 * Note that physical page <i>ppn</i> was freed without being evicted, for
+	 * example because its process exited.
+	 *
+	 * @param ppn the freed frame.
+	 */
+	public abstract void frameFreed(int ppn);
+
+	/**
+	 * Choose a frame to evict. The caller will evict the page it holds, and the
+	 * policy should treat the frame as free until <tt>pageMapped()</tt>
+	 * reports its next page.
+	 *
+	 * @return the frame to evict, or -1 if no frame is evictable.
+	 */
+	public abstract int chooseVictim();
+
+	/**
+	 * Return the first evictable frame at or after <i>start</i>, wrapping
+	 * around, or -1 if there is none.
+	 */
+	protected int findEvictable(int start) {
+		int numFrames = frames.getNumFrames();
+		for (int i = 0; i < numFrames; i++) {
+			int ppn = (start + i) % numFrames;
+			if (frames.isEvictable(ppn))
+				return ppn;
+		}
+		return -1;
+	}
+
+	/** The frames this policy chooses from. */
+	protected Frames frames;
+}
@@ -0,0 +1,193 @@
+package nachos.vm;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Replays a page reference trace against each replacement policy, outside
+ * Nachos, and prints the page faults and swap traffic each would cause.
+ *
+ * <p>
+ * To record a trace, run Nachos with <tt>VMKernel.referenceTrace</tt> set to
+ * a file name. Each line of the trace is <tt>pid vpn r</tt>, or <tt>pid vpn
+ * w</tt> if the page had been written. Then run
+ *
+ * <pre>
+ * java nachos.vm.TraceReplay <i>trace</i> <i>numFrames</i> [<i>tau</i>]
+ * </pre>
+ *
+ * <p>
+ * The replay counts one time unit per reference, so the WSClock window
+ * <i>tau</i> is in references (default four times <i>numFrames</i>). Like the
+ * kernel, the replay writes an evicted page to swap if it was written or came
+ * from swap, and reads it back from swap on its next fault.
+ */
+public class TraceReplay {
+	private TraceReplay() {
+	}
+
+	/**
+	 * Replay a trace file against every policy.
+	 *
+	 * @param args the trace file name, the number of physical pages, and
+	 * optionally the WSClock window.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: java nachos.vm.TraceReplay trace numFrames [tau]");
+			System.exit(1);
+		}
+
+		ArrayList<long[]> trace = readTrace(args[0]);
+		int numFrames = Integer.parseInt(args[1]);
+		long tau = (args.length > 2) ? Long.parseLong(args[2]) : 4 * numFrames;
+
+		System.out.println(trace.size() + " references, " + numFrames
+				+ " frames");
+		System.out.println("policy\t\tfaults\tswap reads\tswap writes");
+
+		replay("FIFO", new FIFOPolicy(), trace, numFrames);
+		replay("clock", new ClockPolicy(0), trace, numFrames);
+		replay("clock/2 hands", new ClockPolicy(Math.max(numFrames / 4, 1)),
+				trace, numFrames);
+		replay("aging", new AgingPolicy(), trace, numFrames);
+		replay("LRU-2", new LRUKPolicy(2), trace, numFrames);
+		replay("ARC", new ARCPolicy(), trace, numFrames);
+		replay("WSClock", new WSClockPolicy(tau), trace, numFrames);
+	}
+
+	/**
+	 * Read a trace file into a list of references. Each reference is a page
+	 * identifier, as the kernel passes to <tt>pageMapped()</tt>, and 1 if the
+	 * page was written or 0 if not.
+	 */
+	private static ArrayList<long[]> readTrace(String fileName)
+			throws IOException {
+		ArrayList<long[]> trace = new ArrayList<long[]>();
+
+		BufferedReader in = new BufferedReader(new FileReader(fileName));
+		String line;
+		while ((line = in.readLine()) != null) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length != 3)
+				continue;
+
+			long page = (Long.parseLong(fields[0]) << 32)
+					| Long.parseLong(fields[1]);
+			trace.add(new long[] { page, fields[2].equals("w") ? 1 : 0 });
+		}
+		in.close();
+
+		return trace;
+	}
+
+	private static void replay(String name, ReplacementPolicy policy,
+			ArrayList<long[]> trace, int numFrames) {
+		SimulatedFrames frames = new SimulatedFrames(numFrames);
+		policy.initialize(frames);
+
+		for (long[] reference : trace)
+			frames.reference(policy, reference[0], reference[1] != 0);
+
+		System.out.println(name + (name.length() < 8 ? "\t\t" : "\t")
+				+ frames.numFaults + "\t" + frames.numSwapReads + "\t\t"
+				+ frames.numSwapWrites);
+	}
+
+	/**
+	 * Physical memory as the replay sees it: which page each frame holds, and
+	 * its reference and dirty bits.
+	 */
+	private static class SimulatedFrames implements ReplacementPolicy.Frames {
+		SimulatedFrames(int numFrames) {
+			page = new long[numFrames];
+			occupied = new boolean[numFrames];
+			referenced = new boolean[numFrames];
+			dirty = new boolean[numFrames];
+		}
+
+		void reference(ReplacementPolicy policy, long page, boolean write) {
+			time++;
+
+			Integer ppn = resident.get(page);
+			if (ppn == null) {
+				numFaults++;
+				ppn = getFrame(policy);
+
+				// like the kernel, a page read from swap goes back to swap
+				dirty[ppn] = inSwap.contains(page);
+				if (dirty[ppn])
+					numSwapReads++;
+
+				this.page[ppn] = page;
+				occupied[ppn] = true;
+				resident.put(page, ppn);
+				policy.pageMapped(ppn, page);
+			}
+
+			referenced[ppn] = true;
+			if (write)
+				dirty[ppn] = true;
+		}
+
+		private int getFrame(ReplacementPolicy policy) {
+			for (int ppn = 0; ppn < occupied.length; ppn++) {
+				if (!occupied[ppn])
+					return ppn;
+			}
+
+			int victim = policy.chooseVictim();
+			if (victim == -1)
+				throw new IllegalStateException("policy found no victim");
+
+			if (dirty[victim]) {
+				numSwapWrites++;
+				inSwap.add(page[victim]);
+			}
+			resident.remove(page[victim]);
+			occupied[victim] = false;
+			referenced[victim] = false;
+			return victim;
+		}
+
+		public int getNumFrames() {
+			return page.length;
+		}
+
+		public boolean isEvictable(int ppn) {
+			return occupied[ppn];
+		}
+
+		public boolean isReferenced(int ppn) {
+			return referenced[ppn];
+		}
+
+		public void clearReferenced(int ppn) {
+			referenced[ppn] = false;
+		}
+
+		public boolean isDirty(int ppn) {
+			return dirty[ppn];
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		private long[] page;
+
+		private boolean[] occupied, referenced, dirty;
+
+		private HashMap<Long, Integer> resident = new HashMap<Long, Integer>();
+
+		private HashSet<Long> inSwap = new HashSet<Long>();
+
+		private long time = 0;
+
+		int numFaults = 0, numSwapReads = 0, numSwapWrites = 0;
+	}
+}
@@ -4,8 +4,16 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
@@ -24,14 +32,73 @@ public class VMKernel extends UserKernel {
 	public void initialize(String[] args) {
 		super.initialize(args);
 		swapfile = ThreadedKernel.fileSystem.open("kernelswapfile", true);
-		swapPagesFilled = new boolean[16];
-		invPageTablePID = new int[Machine.processor().getNumPhysPages()];
+		swapSlots = new long[1];
+		swapSlotRefs = new int[64];
+		invPageTableProcess = new VMProcess[Machine.processor().getNumPhysPages()];
 		invPageTableTE = new TranslationEntry[Machine.processor().getNumPhysPages()];
-		swapMapTE = new HashMap<Integer,LinkedList<TranslationEntry>>();
+		invPageTableRefs = new int[Machine.processor().getNumPhysPages()];
+		sharedFrames = new HashMap<Integer,LinkedList<Mapping>>();
+		pendingSwapWrites = new HashMap<Integer,byte[]>();
+		textPages = new HashMap<String,Integer>();
+		textPageKeys = new String[Machine.processor().getNumPhysPages()];
 
-		noFreePageLock = new Lock();
-		swapfileWriteLock = new Lock();
-		swapfileReadLock = new Lock();
+		String policyName = Config.getString("VMKernel.replacementPolicy",
+				"nachos.vm.ClockPolicy");
+		replacementPolicy = (ReplacementPolicy) Lib.constructObject(policyName);
+		replacementPolicy.initialize(new KernelFrames());
+
+		traceFileName = Config.getString("VMKernel.referenceTrace", null);
+		if(traceFileName != null)
+			referenceTrace = new StringBuffer();
+
+		noFreePageLock = new Lock("VMKernel.noFreePageLock");
+		framesUnpinned = new Condition(noFreePageLock, "VMKernel.framesUnpinned");
+		swapfileWriteLock = new AdaptiveLock("VMKernel.swapfileWriteLock");
+		swapfileReadLock = new AdaptiveLock("VMKernel.swapfileReadLock");
+
+		if(Config.getBoolean("VMKernel.shareZeroPage", true)) {
+			zeroPage = getFreePage();
+			int pageSize = Processor.pageSize;
+			Arrays.fill(Machine.processor().getMemory(),zeroPage*pageSize,
+					(zeroPage+1)*pageSize,(byte) 0);
+		}
+
+		compressedSwapBudget = Config.getInteger("VMKernel.compressedSwapBytes",
+				4*Processor.pageSize);
+		Lib.assertTrue(compressedSwapBudget >= 0);
+		compressedPages = new LinkedHashMap<Integer,byte[]>(16,0.75f,true);
+		compressBuffer = new byte[2*Processor.pageSize];
+		deflater = new Deflater(Deflater.BEST_SPEED);
+		inflater = new Inflater();
+
+		if(Config.getBoolean("VMKernel.pageDaemon", true)) {
+			int numPhysPages = Machine.processor().getNumPhysPages();
+			freeFramesLow = Config.getInteger("VMKernel.freeFramesLow",
+					Math.max(numPhysPages/8, 1));
+			freeFramesHigh = Config.getInteger("VMKernel.freeFramesHigh",
+					2*freeFramesLow);
+			pageDaemonBatch = Config.getInteger("VMKernel.pageDaemonBatch", 4);
+			Lib.assertTrue(freeFramesLow > 0 && freeFramesHigh >= freeFramesLow
+					&& pageDaemonBatch > 0);
+
+			pageDaemonWakeup = new Semaphore(0, "VMKernel.pageDaemonWakeup");
+			pageDaemonIdle = true;
+
+			new KThread(new Runnable() {
+				public void run() {
+					pageDaemon();
+				}
+			}).setName("page daemon").fork();
+		}
+
+		pageMergeInterval = Config.getInteger("VMKernel.pageMergeInterval", 0);
+		if(pageMergeInterval > 0) {
+			new KThread(new Runnable() {
+				public void run() {
+					pageMerger();
+				}
+			}).setName("page merger").fork();
+		}
 	}
 
 	/**
@@ -52,121 +119,998 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		Lib.debug(dbgVM, "Text pages: loaded " + numTextPagesLoaded
+				+ ", shared " + numTextPagesShared);
+		Lib.debug(dbgVM, "Zero page: " + numZeroPagesMapped + " mappings, "
+				+ numZeroPagesCopied + " copied on write");
+		Lib.debug(dbgVM, "Page merging: " + numFramesMerged + " frames merged, "
+				+ numFramesZeroed + " into the zero page, in " + numMergeScans
+				+ " scans");
+		Lib.debug(dbgVM, "Swap slots: " + numSwapSlotsUsed + " in use, at most "
+				+ maxSwapSlotsUsed + ", " + swapSlots.length*64 + " allocated");
+		Lib.debug(dbgVM, "Evictions: " + numEvictionsOnFault + " on fault ("
+				+ numSwapWritesOnFault + " dirty), " + numDaemonFrees
+				+ " by page daemon (" + numDaemonSwapWrites + " dirty)");
+		Lib.debug(dbgVM, "Swap file: " + numSwapFileReads + " reads, "
+				+ numSwapFileWrites + " writes");
+		double ratio = (numPagesCompressed == 0) ? 0
+				: (double) numPagesCompressed*Processor.pageSize/totalCompressedBytes;
+		Lib.debug(dbgVM, "Compressed swap: " + numPagesCompressed + " pages stored ("
+				+ Math.round(ratio*10)/10.0 + ":1), " + numPagesIncompressible + " not, " + numPagesSpilled
+				+ " spilled; " + numCompressedSwapHits + " of " + numSwapIns
+				+ " swap-ins hit");
+		Lib.debug(dbgVM, "Prefetch: " + numPagesPrefetched + " pages, "
+				+ numPrefetchedPagesUsed + " used");
+		if(referenceTrace != null)
+			writeReferenceTrace();
 		ThreadedKernel.fileSystem.remove("kernelswapfile");
 		super.terminate();
 	}
 
 	/**
- 	 * Evicts a physical page and returns the page number
+ 	 * Evicts a physical page and returns the page number. The page is chosen
+ 	 * by the replacement policy named by <tt>VMKernel.replacementPolicy</tt>.
+ 	 * With the page daemon running, this happens only when the daemon has
+ 	 * fallen behind.
  	 */
 	public static int evictPage() {
-		boolean pageEvicted = false;
-
-		// value to determine if all pages have been checked for eviction
-		int startingPPN = IPTIterator;
-
-		int finalPPN;
-
-		// find a page to evict
-		do {
-			// evict a page if it isn't pinned
-			if(!pinnedPages.contains(IPTIterator)) {
-				// evict page w/o swap if not dirty
-				if(!invPageTableTE[IPTIterator].dirty) {
-					// set valid bit to false, indicating page no longer in memory
-					invPageTableTE[IPTIterator].valid = false;
-					// return ppn that was evicted
-					finalPPN = IPTIterator;
-					advanceIPT();
-
-					return finalPPN;
-				}
-				// evict page w/ swap otherwise
-				else {
-
-					// find open page in swapfile
-					int i;
-					for(i = 0; i < swapPagesFilled.length; i++) {
-
-						if(swapPagesFilled[i] == false) {
-							break;
-						}
-					}
-					// ensure swap page array is large enough
-					if(swapPagesFilled.length == i) {
-
-						boolean[] temp = new boolean[2*swapPagesFilled.length];
-						System.arraycopy(swapPagesFilled,0,temp,0,swapPagesFilled.length);
-						swapPagesFilled = temp;
-					}
-
-					swapPagesFilled[i] = true;
-					swapOut(invPageTableTE[IPTIterator].ppn,i);
-					invPageTableTE[IPTIterator].valid = false;
-					pageEvicted = true;
-					invPageTableTE[IPTIterator].ppn = i;					
-
-					// add TE to map with PIDs
-					if(!swapMapTE.containsKey(invPageTablePID[IPTIterator])) {
-						swapMapTE.put(invPageTablePID[IPTIterator],new LinkedList<TranslationEntry>());
-					}
-					swapMapTE.get(invPageTablePID[IPTIterator]).add(invPageTableTE[IPTIterator]);
-
-					finalPPN = IPTIterator;
-					advanceIPT();
-					return finalPPN;
-				}
+		boolean intStatus = Machine.interrupt().disable();
+
+		// claim the victim before anything can block, so that no other
+		// thread picks the same frame while this one writes it out
+		int victim = replacementPolicy.chooseVictim();
+
+		int slot = -1;
+		if(victim != -1) {
+			Eviction eviction = unmapVictim(victim);
+			numEvictionsOnFault++;
+			if(eviction != null) {
+				slot = allocateSwapSlots(1, neighbourSlot(eviction));
+				assignSwapSlot(eviction, slot);
+				numSwapWritesOnFault++;
 			}
-			// If page is pinned, advance iterator
-			else {
-				advanceIPT();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		// the page table no longer maps the frame, so nothing can change it
+		// while it is written out
+		if(slot != -1)
+			writeSwapSlots(new int[] {slot}, 1);
+
+		// victim is -1 if no page can be freed
+		return victim;
+	}
+
+	/**
+	 * Unmap physical page <i>victim</i>, just chosen by the replacement
+	 * policy, from every page table entry that maps it. A dirty page is copied
+	 * out, so the frame may be reused at once; the caller must then pass the
+	 * result to <tt>assignSwapSlot()</tt> before interrupts are enabled.
+	 *
+	 * @return the page to write to swap, or <tt>null</tt> if it was clean.
+	 */
+	private static Eviction unmapVictim(int victim) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		TranslationEntry entry = invPageTableTE[victim];
+		// the frame is unmapped until its new owner maps it
+		invPageTableTE[victim] = null;
+		forgetTextPage(victim);
+
+		// a frame shared copy-on-write is unmapped from every sharer
+		LinkedList<Mapping> sharers = sharedFrames.remove(victim);
+		invPageTableRefs[victim] = 1;
+
+		// set valid bit to false, indicating page no longer in memory
+		entry.valid = false;
+		if(sharers != null) {
+			for(Mapping sharer : sharers)
+				sharer.entry.valid = false;
+		}
+
+		// evict page w/o swap if not dirty
+		if(!entry.dirty)
+			return null;
+
+		int pageSize = Processor.pageSize;
+		byte[] contents = getPageBuffer();
+		System.arraycopy(Machine.processor().getMemory(),victim*pageSize,contents,0,pageSize);
+		return new Eviction(invPageTableProcess[victim],entry,sharers,contents);
+	}
+
+	/**
+	 * Record that the page <i>eviction</i> was unmapped from is in swap slot
+	 * <i>slot</i>, and queue it to be written there by
+	 * <tt>writeSwapSlots()</tt>. Until it is written, <tt>swapIn()</tt> reads
+	 * the slot from the copy.
+	 */
+	private static void assignSwapSlot(Eviction eviction, int slot) {
+		eviction.process.swapSlotByVpn[eviction.entry.vpn] = slot;
+
+		// every sharer now finds the page in the same swap slot
+		if(eviction.sharers != null) {
+			for(Mapping sharer : eviction.sharers) {
+				sharer.entry.dirty = true;
+				sharer.process.swapSlotByVpn[sharer.entry.vpn] = slot;
+				shareSwapSlot(slot);
 			}
-		} while(!pageEvicted && (startingPPN != IPTIterator));
-			
-		// return -1 if no page can be freed		
-		return -1;
+		}
+
+		pendingSwapWrites.put(slot,eviction.contents);
+		// the slot must not be reused before the write completes
+		shareSwapSlot(slot);
 	}
 
-	public static void swapOut(int ppn, int index) {
+	/**
+	 * Return the swap slot that would follow the slot of the page before
+	 * <i>eviction</i>'s page, so that a process's pages stay in order in the
+	 * swap file, or -1 if that page is not in swap.
+	 */
+	private static int neighbourSlot(Eviction eviction) {
+		int vpn = eviction.entry.vpn;
+		if(vpn == 0 || eviction.process.swapSlotByVpn[vpn-1] == -1)
+			return -1;
+		return eviction.process.swapSlotByVpn[vpn-1] + 1;
+	}
+
+	/**
+	 * Write the first <i>count</i> entries of <i>slots</i>, swap slots
+	 * passed to <tt>assignSwapSlot()</tt>, from <tt>pendingSwapWrites</tt> to
+	 * swap. Pages that compress well go to the compressed swap pool instead
+	 * of the swap file, and the pages that spill out of the pool go to the
+	 * file with the rest. Each run of consecutive slots is written with a
+	 * single write.
+	 */
+	private static void writeSwapSlots(int[] slots, int count) {
+		int pageSize = Processor.pageSize;
+
+		boolean intStatus = Machine.interrupt().disable();
+		int[] writes = new int[count];
+		int numWrites = 0;
+		for(int j = 0; j < count; j++) {
+			if(compressSwapSlot(slots[j])) {
+				returnPageBuffer(pendingSwapWrites.remove(slots[j]));
+				releaseSwapSlot(slots[j]);
+			}
+			else {
+				writes[numWrites++] = slots[j];
+			}
+		}
+		for(int slot : spillCompressedSlots()) {
+			if(numWrites == writes.length)
+				writes = Arrays.copyOf(writes,2*numWrites);
+			writes[numWrites++] = slot;
+		}
+		Machine.interrupt().restore(intStatus);
 
-		int pageSize = Machine.processor().pageSize;
+		Arrays.sort(writes,0,numWrites);
 
 		swapfileWriteLock.acquire();
-		byte[] memoryPage = new byte[pageSize];
-		System.arraycopy(Machine.processor().getMemory(),ppn*pageSize,memoryPage,0,pageSize);
-		
-		swapfile.write(index*pageSize,memoryPage,0,pageSize);
-		invPageTableTE[IPTIterator].ppn = index;
+		for(int first = 0, last; first < numWrites; first = last) {
+			for(last = first+1; last < numWrites && writes[last] == writes[last-1]+1; last++)
+				;
+
+			int length = (last-first)*pageSize;
+			if(swapWriteBuffer.length < length)
+				swapWriteBuffer = new byte[length];
+			for(int j = first; j < last; j++)
+				System.arraycopy(pendingSwapWrites.get(writes[j]),0,swapWriteBuffer,(j-first)*pageSize,pageSize);
+
+			swapfile.write(writes[first]*pageSize,swapWriteBuffer,0,length);
+			numSwapFileWrites++;
+
+			for(int j = first; j < last; j++) {
+				returnPageBuffer(pendingSwapWrites.remove(writes[j]));
+				releaseSwapSlot(writes[j]);
+			}
+		}
 		swapfileWriteLock.release();
-	
 	}
 
-	public static void swapIn(int PID, int vpn, int ppn) {
-		int pageSize = Machine.processor().pageSize;
+	/**
+	 * Compress the page waiting in <tt>pendingSwapWrites</tt> for swap slot
+	 * <i>slot</i> into the compressed swap pool, if the pool is enabled and
+	 * the page shrinks to less than three quarters of its size. Interrupts
+	 * must be disabled.
+	 *
+	 * @return <tt>true</tt> if the page was stored in the pool.
+	 */
+	private static boolean compressSwapSlot(int slot) {
+		if(compressedSwapBudget == 0)
+			return false;
 
-		swapfileReadLock.acquire();
-		byte[] memoryPage = new byte[pageSize];
-		
-		// search through IPT for swap page index
-		LinkedList temp = swapMapTE.get(PID);
-		TranslationEntry tempTE = null;
-		for(int i = 0; i < temp.size(); i++) {
-			tempTE = (TranslationEntry)temp.get(i);
-			if(tempTE.vpn == vpn) 
+		int pageSize = Processor.pageSize;
+
+		deflater.reset();
+		deflater.setInput(pendingSwapWrites.get(slot),0,pageSize);
+		deflater.finish();
+		int length = deflater.deflate(compressBuffer);
+		if(!deflater.finished() || length >= pageSize*3/4 || length > compressedSwapBudget) {
+			numPagesIncompressible++;
+			return false;
+		}
+
+		compressedPages.put(slot,Arrays.copyOf(compressBuffer,length));
+		compressedBytes += length;
+		numPagesCompressed++;
+		totalCompressedBytes += length;
+		return true;
+	}
+
+	/**
+	 * Move the least recently used pages out of the compressed swap pool,
+	 * into <tt>pendingSwapWrites</tt>, until the pool fits its budget.
+	 * Interrupts must be disabled.
+	 *
+	 * @return the slots of the pages moved, which must be written to the swap
+	 * file.
+	 */
+	private static LinkedList<Integer> spillCompressedSlots() {
+		LinkedList<Integer> spilled = new LinkedList<Integer>();
+
+		Iterator<Map.Entry<Integer,byte[]>> i = compressedPages.entrySet().iterator();
+		while(compressedBytes > compressedSwapBudget) {
+			Map.Entry<Integer,byte[]> oldest = i.next();
+			i.remove();
+			compressedBytes -= oldest.getValue().length;
+
+			byte[] memoryPage = getPageBuffer();
+			decompress(oldest.getValue(),memoryPage,0);
+			pendingSwapWrites.put(oldest.getKey(),memoryPage);
+			// the slot must not be reused before the write completes
+			shareSwapSlot(oldest.getKey());
+			spilled.add(oldest.getKey());
+			numPagesSpilled++;
+		}
+
+		return spilled;
+	}
+
+	private static void decompress(byte[] compressed, byte[] page, int offset) {
+		int pageSize = Processor.pageSize;
+
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			Lib.assertTrue(inflater.inflate(page,offset,pageSize) == pageSize);
+		}
+		catch (DataFormatException e) {
+			Lib.assertNotReached("corrupt compressed swap page");
+		}
+	}
+
+	/**
+	 * The page daemon. Each time it is woken, it frees frames until
+	 * <tt>VMKernel.freeFramesHigh</tt> are free, unmapping up to
+	 * <tt>VMKernel.pageDaemonBatch</tt> victims at a time and writing the
+	 * dirty ones to swap together.
+	 */
+	private static void pageDaemon() {
+		Eviction[] batch = new Eviction[pageDaemonBatch];
+		int[] slots = new int[pageDaemonBatch];
+
+		while(true) {
+			pageDaemonWakeup.P();
+
+			while(freeFrames(batch, slots))
+				;
+
+			// nothing blocks between the last check and here
+			pageDaemonIdle = true;
+		}
+	}
+
+	/**
+	 * Free one batch of frames for the page daemon. The dirty pages are given
+	 * a run of consecutive swap slots, in order of process and page, so they
+	 * are written together and can be prefetched together.
+	 *
+	 * @return <tt>true</tt> if more frames should be freed.
+	 */
+	private static boolean freeFrames(Eviction[] batch, int[] slots) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int freed = 0, count = 0;
+		while(freed < batch.length && getNumFreePages() < freeFramesHigh) {
+			int victim = replacementPolicy.chooseVictim();
+			if(victim == -1)
 				break;
+
+			Eviction eviction = unmapVictim(victim);
+			if(eviction != null)
+				batch[count++] = eviction;
+
+			// the page's contents are safe in the eviction
+			freeFrame(victim);
+			freed++;
+		}
+		numDaemonFrees += freed;
+
+		if(count > 0) {
+			Arrays.sort(batch,0,count,evictionOrder);
+			int first = allocateSwapSlots(count, neighbourSlot(batch[0]));
+			for(int j = 0; j < count; j++) {
+				assignSwapSlot(batch[j], first+j);
+				slots[j] = first+j;
+				batch[j] = null;
+			}
 		}
-		if(tempTE != null) {
-			swapfile.read(tempTE.ppn*pageSize,memoryPage,0,pageSize);
-			System.arraycopy(memoryPage,0,Machine.processor().getMemory(),ppn*pageSize,pageSize);
+
+		Machine.interrupt().restore(intStatus);
+
+		if(count > 0) {
+			writeSwapSlots(slots, count);
+			numDaemonSwapWrites += count;
 		}
+
+		return freed > 0 && getNumFreePages() < freeFramesHigh;
+	}
+
+	/**
+	 * Wake the page daemon if it is idle and free frames are running low.
+	 */
+	private static void wakePageDaemon() {
+		if(pageDaemonWakeup != null && pageDaemonIdle
+				&& getNumFreePages() < freeFramesLow) {
+			pageDaemonIdle = false;
+			pageDaemonWakeup.V();
+		}
+	}
+
+	/**
+	 * Read swap slot <i>slot</i> into physical page <i>ppn</i>.
+	 */
+	public static void swapIn(int slot, int ppn) {
+		swapIn(slot, new int[] {ppn}, 1);
+	}
+
+	/**
+	 * Read the <i>count</i> consecutive swap slots starting at <i>slot</i>
+	 * into physical pages <i>ppns</i>. Slots already in the swap file are read
+	 * with a single read for each run of them. The caller must hold a
+	 * reference to every slot.
+	 */
+	public static void swapIn(int slot, int[] ppns, int count) {
+		int pageSize = Processor.pageSize;
+		byte[] memory = Machine.processor().getMemory();
+
+		swapfileReadLock.acquire();
+
+		// pages still on their way to the swap file, or kept compressed, are
+		// copied before anything can block; the rest are in the file to stay
+		boolean intStatus = Machine.interrupt().disable();
+		boolean[] copied = new boolean[count];
+		for(int j = 0; j < count; j++) {
+			byte[] memoryPage = pendingSwapWrites.get(slot+j);
+			byte[] compressed = compressedPages.get(slot+j);
+			if(memoryPage != null) {
+				System.arraycopy(memoryPage,0,memory,ppns[j]*pageSize,pageSize);
+				copied[j] = true;
+			}
+			else if(compressed != null) {
+				decompress(compressed,memory,ppns[j]*pageSize);
+				numCompressedSwapHits++;
+				copied[j] = true;
+			}
+		}
+		numSwapIns += count;
+		Machine.interrupt().restore(intStatus);
+
+		for(int first = 0, last; first < count; first = last) {
+			if(copied[first]) {
+				last = first+1;
+				continue;
+			}
+			for(last = first+1; last < count && !copied[last]; last++)
+				;
+
+			int length = (last-first)*pageSize;
+			if(swapReadBuffer.length < length)
+				swapReadBuffer = new byte[length];
+			swapfile.read((slot+first)*pageSize,swapReadBuffer,0,length);
+			numSwapFileReads++;
+
+			for(int j = first; j < last; j++)
+				System.arraycopy(swapReadBuffer,(j-first)*pageSize,memory,ppns[j]*pageSize,pageSize);
+		}
+
 		swapfileReadLock.release();
 
 	}
 
-	private static void advanceIPT() {
-		IPTIterator += 1;
-		if(IPTIterator == Machine.processor().getNumPhysPages())
-			IPTIterator = 0;
+	/**
+	 * Take a page-sized buffer from the pool, to hold a page waiting to be
+	 * written to swap.
+	 */
+	private static byte[] getPageBuffer() {
+		if(pageBuffers.isEmpty())
+			return new byte[Processor.pageSize];
+		return pageBuffers.removeFirst();
+	}
+
+	private static void returnPageBuffer(byte[] buffer) {
+		pageBuffers.add(buffer);
+	}
+
+	/**
+	 * Allocate <i>count</i> consecutive free swap slots and give each one
+	 * reference. The run starts at <i>preferred</i> if those slots are free,
+	 * or else at the lowest numbered slot after the hint that starts a free
+	 * run. The bitmap doubles as often as needed to hold the run.
+	 *
+	 * @param count the number of slots.
+	 * @param preferred the slot to start at if possible, or -1.
+	 * @return the first slot of the run.
+	 */
+	private static int allocateSwapSlots(int count, int preferred) {
+		int first = preferred;
+		if(first < 0 || firstUsedSwapSlot(first, count) >= 0) {
+			first = swapSlotHint*64;
+			while(first < swapSlots.length*64) {
+				// skip full words, and the used slots below first in its word
+				long used = swapSlots[first/64] | ((1L << (first%64)) - 1);
+				if(used == -1L) {
+					first = (first/64 + 1)*64;
+					continue;
+				}
+				first = (first/64)*64 + Long.numberOfTrailingZeros(~used);
+
+				int usedSlot = firstUsedSwapSlot(first, count);
+				if(usedSlot < 0)
+					break;
+				first = usedSlot + 1;
+			}
+		}
+
+		while(first + count > swapSlots.length*64) {
+			int words = swapSlots.length;
+			swapSlots = Arrays.copyOf(swapSlots,2*words);
+			swapSlotRefs = Arrays.copyOf(swapSlotRefs,2*words*64);
+		}
+
+		for(int slot = first; slot < first + count; slot++) {
+			swapSlots[slot/64] |= 1L << (slot%64);
+			takeSwapSlot(slot);
+		}
+		while(swapSlotHint < swapSlots.length && swapSlots[swapSlotHint] == -1L)
+			swapSlotHint++;
+
+		return first;
+	}
+
+	/**
+	 * Find the first allocated slot among the <i>count</i> swap slots starting
+	 * at <i>first</i>. Slots past the end of the bitmap are free.
+	 *
+	 * @return the first allocated slot, or -1 if they are all free.
+	 */
+	private static int firstUsedSwapSlot(int first, int count) {
+		for(int slot = first; slot < first + count && slot < swapSlots.length*64; slot++) {
+			if((swapSlots[slot/64] & (1L << (slot%64))) != 0)
+				return slot;
+		}
+		return -1;
+	}
+
+	private static int takeSwapSlot(int slot) {
+		swapSlotRefs[slot] = 1;
+		numSwapSlotsUsed++;
+		maxSwapSlotsUsed = Math.max(maxSwapSlotsUsed,numSwapSlotsUsed);
+		return slot;
+	}
+
+	/**
+	 * Add a reference to swap slot <i>slot</i>, for another page table entry
+	 * that finds its page there.
+	 */
+	public static void shareSwapSlot(int slot) {
+		Lib.assertTrue(swapSlotRefs[slot] > 0);
+		swapSlotRefs[slot]++;
+	}
+
+	/**
+	 * Drop a reference to swap slot <i>slot</i>, because a page was read back
+	 * from it or its process exited. The slot is freed with its last
+	 * reference.
+	 */
+	public static void releaseSwapSlot(int slot) {
+		Lib.assertTrue(swapSlotRefs[slot] > 0);
+		if(--swapSlotRefs[slot] == 0) {
+			byte[] compressed = compressedPages.remove(slot);
+			if(compressed != null)
+				compressedBytes -= compressed.length;
+			swapSlots[slot/64] &= ~(1L << (slot%64));
+			swapSlotHint = Math.min(swapSlotHint,slot/64);
+			numSwapSlotsUsed--;
+		}
+	}
+
+	/**
+	 * Record that the page table entry <i>entry</i> of <i>process</i> is
+	 * now the only mapping of physical page <i>ppn</i>.
+	 */
+	public static void mapFrame(int ppn, VMProcess process, TranslationEntry entry) {
+		invPageTableProcess[ppn] = process;
+		invPageTableTE[ppn] = entry;
+		invPageTableRefs[ppn] = 1;
+		sharedFrames.remove(ppn);
+		replacementPolicy.pageMapped(ppn, ((long) process.getPID() << 32) | entry.vpn);
+	}
+
+	/**
+	 * Add the page table entry <i>entry</i> of <i>process</i> as another
+	 * mapping of the resident physical page it points to, for a page shared
+	 * copy-on-write.
+	 */
+	public static void shareFrame(VMProcess process, TranslationEntry entry) {
+		int ppn = entry.ppn;
+
+		if(!sharedFrames.containsKey(ppn)) {
+			sharedFrames.put(ppn,new LinkedList<Mapping>());
+		}
+		sharedFrames.get(ppn).add(new Mapping(process,entry));
+		invPageTableRefs[ppn]++;
+	}
+
+	/**
+	 * Remove the mapping of <i>process</i> from the resident physical
+	 * page that <i>entry</i> points to. The page is freed once nothing maps
+	 * it.
+	 */
+	public static void releaseFrame(VMProcess process, TranslationEntry entry) {
+		int ppn = entry.ppn;
+
+		if(invPageTableRefs[ppn] == 1) {
+			freeFrame(ppn);
+			return;
+		}
+
+		invPageTableRefs[ppn]--;
+		LinkedList<Mapping> sharers = sharedFrames.get(ppn);
+
+		if(invPageTableTE[ppn] == entry) {
+			// promote another sharer to be the page's primary mapping, keeping
+			// the page dirty if this mapping was
+			Mapping next = sharers.removeFirst();
+			next.entry.dirty |= entry.dirty;
+			invPageTableProcess[ppn] = next.process;
+			invPageTableTE[ppn] = next.entry;
+		}
+		else {
+			for(Mapping sharer : sharers) {
+				if(sharer.entry == entry) {
+					sharers.remove(sharer);
+					break;
+				}
+			}
+		}
+
+		if(sharers.isEmpty())
+			sharedFrames.remove(ppn);
+	}
+
+	/**
+	 * Give <i>process</i> a private copy of the resident page that
+	 * <i>entry</i> points to, if any other page table entry shares it. On
+	 * return, <i>entry</i> is the only mapping of its physical page.
+	 */
+	public static void copyOnWrite(VMProcess process, TranslationEntry entry) {
+		int oldPPN = entry.ppn;
+		if(invPageTableRefs[oldPPN] == 1)
+			return;
+
+		// keep the shared page resident while we find a frame for the copy
+		pinnedPages.add(oldPPN);
+		int newPPN = getPageWaiting();
+		pinnedPages.remove(Integer.valueOf(oldPPN));
+		wakePageWaiters();
+
+		if(entry.ppn != oldPPN || invPageTableRefs[oldPPN] == 1) {
+			// another thread of this process copied the page meanwhile
+			freeFrame(newPPN);
+			return;
+		}
+
+		int pageSize = Processor.pageSize;
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory,oldPPN*pageSize,memory,newPPN*pageSize,pageSize);
+
+		releaseFrame(process,entry);
+		entry.ppn = newPPN;
+		mapFrame(newPPN,process,entry);
+	}
+
+	/**
+	 * Map <i>entry</i>, a page that has never been written, read-only to the
+	 * shared zero page, if <tt>VMKernel.shareZeroPage</tt> is true. The page
+	 * gets a frame of its own when it is first written.
+	 *
+	 * @return <tt>true</tt> if the page was mapped.
+	 */
+	public static boolean mapZeroPage(TranslationEntry entry) {
+		if(zeroPage == -1)
+			return false;
+
+		entry.ppn = zeroPage;
+		entry.readOnly = true;
+		entry.valid = true;
+		entry.used = true;
+		entry.dirty = false;
+		numZeroPagesMapped++;
+		return true;
+	}
+
+	/**
+	 * Test whether <i>entry</i> maps the shared zero page.
+	 */
+	public static boolean isZeroPage(TranslationEntry entry) {
+		return zeroPage != -1 && entry.valid && entry.ppn == zeroPage;
+	}
+
+	/**
+	 * Give <i>process</i> a zeroed, writable page of its own in place of the
+	 * shared zero page that <i>entry</i> maps, because the page is about to
+	 * be written.
+	 */
+	public static void copyZeroPage(VMProcess process, TranslationEntry entry) {
+		int ppn = getPageWaiting();
+
+		if(!isZeroPage(entry)) {
+			// another thread of this process copied the page meanwhile
+			freeFrame(ppn);
+			return;
+		}
+
+		int pageSize = Processor.pageSize;
+		Arrays.fill(Machine.processor().getMemory(),ppn*pageSize,
+				(ppn+1)*pageSize,(byte) 0);
+
+		entry.ppn = ppn;
+		entry.readOnly = false;
+		entry.used = true;
+		// the write that follows makes this the only copy of the page
+		entry.dirty = true;
+		mapFrame(ppn,process,entry);
+		numZeroPagesCopied++;
+	}
+
+	/**
+	 * The page merger. Every <tt>VMKernel.pageMergeInterval</tt> ticks, it
+	 * looks for resident pages with the same contents and merges them.
+	 */
+	private static void pageMerger() {
+		while(true) {
+			ThreadedKernel.alarm.waitUntil(pageMergeInterval);
+
+			boolean intStatus = Machine.interrupt().disable();
+			mergePages();
+			Machine.interrupt().restore(intStatus);
+		}
+	}
+
+	/**
+	 * Hash every resident frame that can be evicted, and merge frames with
+	 * the same contents into one frame shared copy-on-write, as if by fork.
+	 * A frame of zeros that is writable by everything mapping it goes to the
+	 * shared zero page instead. Interrupts must be disabled.
+	 */
+	private static void mergePages() {
+		int pageSize = Processor.pageSize;
+		byte[] memory = Machine.processor().getMemory();
+
+		HashMap<Integer,LinkedList<Integer>> framesByHash =
+				new HashMap<Integer,LinkedList<Integer>>();
+
+		for(int ppn = 0; ppn < invPageTableTE.length; ppn++) {
+			if(invPageTableTE[ppn] == null || pinnedPages.contains(ppn))
+				continue;
+
+			int hash = 1;
+			boolean zero = true;
+			for(int j = ppn*pageSize; j < (ppn+1)*pageSize; j++) {
+				hash = 31*hash + memory[j];
+				zero &= memory[j] == 0;
+			}
+
+			if(zero && zeroPage != -1 && isWritable(ppn)) {
+				mergeIntoZeroPage(ppn);
+				continue;
+			}
+
+			LinkedList<Integer> candidates = framesByHash.get(hash);
+			if(candidates == null) {
+				candidates = new LinkedList<Integer>();
+				framesByHash.put(hash,candidates);
+			}
+
+			boolean merged = false;
+			for(int other : candidates) {
+				if(samePage(memory,other,ppn,pageSize)) {
+					mergeFrame(ppn,other);
+					merged = true;
+					break;
+				}
+			}
+			if(!merged)
+				candidates.add(ppn);
+		}
+
+		numMergeScans++;
+	}
+
+	private static boolean samePage(byte[] memory, int ppn1, int ppn2, int pageSize) {
+		for(int j = 0; j < pageSize; j++) {
+			if(memory[ppn1*pageSize+j] != memory[ppn2*pageSize+j])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Return the page table entries, and their processes, that map frame
+	 * <i>ppn</i>.
+	 */
+	private static LinkedList<Mapping> mappingsOf(int ppn) {
+		LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+		mappings.add(new Mapping(invPageTableProcess[ppn],invPageTableTE[ppn]));
+		if(sharedFrames.containsKey(ppn))
+			mappings.addAll(sharedFrames.get(ppn));
+		return mappings;
+	}
+
+	private static boolean isWritable(int ppn) {
+		for(Mapping mapping : mappingsOf(ppn)) {
+			if(!mapping.process.isWritable(mapping.entry.vpn))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Move every mapping of frame <i>from</i> to frame <i>into</i>, which has
+	 * the same contents, and free <i>from</i>. Every writable mapping of
+	 * either frame becomes copy-on-write.
+	 */
+	private static void mergeFrame(int from, int into) {
+		boolean dirty = false;
+
+		for(Mapping mapping : mappingsOf(into)) {
+			mapping.process.shareWritablePage(mapping.entry.vpn);
+			dirty |= mapping.entry.dirty;
+		}
+
+		for(Mapping mapping : mappingsOf(from)) {
+			mapping.process.shareWritablePage(mapping.entry.vpn);
+			dirty |= mapping.entry.dirty;
+			mapping.entry.ppn = into;
+			shareFrame(mapping.process,mapping.entry);
+		}
+
+		// eviction looks only at the primary mapping, which may change when
+		// it is released, so every mapping of the frame must agree: a clean
+		// mapping can be reloaded from where it came from, but a dirty one
+		// only from swap
+		for(Mapping mapping : mappingsOf(into))
+			mapping.entry.dirty = dirty;
+
+		sharedFrames.remove(from);
+		freeFrame(from);
+		numFramesMerged++;
+	}
+
+	/**
+	 * Move every mapping of frame <i>ppn</i>, which holds only zeros, to the
+	 * shared zero page, and free <i>ppn</i>.
+	 */
+	private static void mergeIntoZeroPage(int ppn) {
+		for(Mapping mapping : mappingsOf(ppn))
+			mapZeroPage(mapping.entry);
+
+		sharedFrames.remove(ppn);
+		freeFrame(ppn);
+		numFramesZeroed++;
+	}
+
+	/**
+	 * Return physical page <i>ppn</i>, which no page table entry maps, to the
+	 * free list.
+	 */
+	public static void freeFrame(int ppn) {
+		invPageTableTE[ppn] = null;
+		forgetTextPage(ppn);
+		replacementPolicy.frameFreed(ppn);
+		returnPage(ppn);
+	}
+
+	/**
+	 * Map page <i>page</i> of read-only section <i>section</i> of executable
+	 * <i>coffName</i> into <i>entry</i> of <i>process</i>, if another
+	 * process already has it in memory.
+	 *
+	 * @return <tt>true</tt> if the page was mapped.
+	 */
+	public static boolean mapTextPage(String coffName, int section, int page,
+			VMProcess process, TranslationEntry entry) {
+		Integer ppn = textPages.get(textPageKey(coffName,section,page));
+		if(ppn == null)
+			return false;
+
+		entry.ppn = ppn;
+		entry.readOnly = true;
+		entry.valid = true;
+		entry.used = true;
+		entry.dirty = false;
+		shareFrame(process,entry);
+		numTextPagesShared++;
+		return true;
+	}
+
+	/**
+	 * Record that physical page <i>ppn</i> holds page <i>page</i> of
+	 * read-only section <i>section</i> of executable <i>coffName</i>, just
+	 * loaded, so that other processes running the same executable can map
+	 * it. The page stays cached until it is evicted or no process maps it.
+	 */
+	public static void cacheTextPage(String coffName, int section, int page,
+			int ppn) {
+		numTextPagesLoaded++;
+
+		String key = textPageKey(coffName,section,page);
+		if(textPages.containsKey(key))
+			return;
+
+		textPages.put(key,ppn);
+		textPageKeys[ppn] = key;
+	}
+
+	/**
+	 * Drop physical page <i>ppn</i> from the text page cache, if it is there.
+	 */
+	private static void forgetTextPage(int ppn) {
+		if(textPageKeys[ppn] != null) {
+			textPages.remove(textPageKeys[ppn]);
+			textPageKeys[ppn] = null;
+		}
+	}
+
+	private static String textPageKey(String coffName, int section, int page) {
+		return coffName + ":" + section + ":" + page;
+	}
+
+	/**
+	 * A dirty page unmapped for eviction: the page table entries that mapped
+	 * it, and a copy of its contents.
+	 */
+	private static class Eviction {
+		Eviction(VMProcess process, TranslationEntry entry,
+				LinkedList<Mapping> sharers, byte[] contents) {
+			this.process = process;
+			this.entry = entry;
+			this.sharers = sharers;
+			this.contents = contents;
+		}
+
+		VMProcess process;
+
+		TranslationEntry entry;
+
+		LinkedList<Mapping> sharers;
+
+		byte[] contents;
+	}
+
+	/** Orders evictions by process, then by page. */
+	private static final Comparator<Eviction> evictionOrder = new Comparator<Eviction>() {
+		public int compare(Eviction a, Eviction b) {
+			if(a.process.getPID() != b.process.getPID())
+				return a.process.getPID() < b.process.getPID() ? -1 : 1;
+			return a.entry.vpn - b.entry.vpn;
+		}
+	};
+
+	/**
+	 * A page table entry, and the process it belongs to, that maps a frame
+	 * shared copy-on-write.
+	 */
+	private static class Mapping {
+		Mapping(VMProcess process, TranslationEntry entry) {
+			this.process = process;
+			this.entry = entry;
+		}
+
+		VMProcess process;
+
+		TranslationEntry entry;
+	}
+
+	/**
+	 * The physical pages, as the replacement policy sees them.
+	 */
+	private static class KernelFrames implements ReplacementPolicy.Frames {
+		public int getNumFrames() {
+			return Machine.processor().getNumPhysPages();
+		}
+
+		public boolean isEvictable(int ppn) {
+			return invPageTableTE[ppn] != null && !pinnedPages.contains(ppn);
+		}
+
+		// a shared frame was referenced if any of its mappings was
+		public boolean isReferenced(int ppn) {
+			if(invPageTableTE[ppn].used)
+				return true;
+
+			LinkedList<Mapping> sharers = sharedFrames.get(ppn);
+			if(sharers != null) {
+				for(Mapping sharer : sharers) {
+					if(sharer.entry.used)
+						return true;
+				}
+			}
+			return false;
+		}
+
+		public void clearReferenced(int ppn) {
+			invPageTableTE[ppn].used = false;
+
+			LinkedList<Mapping> sharers = sharedFrames.get(ppn);
+			if(sharers != null) {
+				for(Mapping sharer : sharers)
+					sharer.entry.used = false;
+			}
+		}
+
+		public boolean isDirty(int ppn) {
+			return invPageTableTE[ppn].dirty;
+		}
+
+		public long getTime() {
+			return Machine.timer().getTime();
+		}
+	}
+
+	/**
+	 * Append the pages of <i>pageTable</i> used since the last call to the
+	 * reference trace, if one is being recorded, and clear their reference
+	 * bits. Called at page faults and context switches, so the trace holds
+	 * the pages each process used between those points, in page order.
+	 *
+	 * @param pid the process that owns <i>pageTable</i>.
+	 * @param pageTable the page table to sample.
+	 */
+	public static void recordReferences(int pid, TranslationEntry[] pageTable) {
+		if(referenceTrace == null)
+			return;
+
+		for(int vpn = 0; vpn < pageTable.length; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if(entry.valid && entry.used) {
+				recordReference(pid, vpn, entry.dirty);
+				entry.used = false;
+			}
+		}
+	}
+
+	/**
+	 * Append a reference to page <i>vpn</i> of process <i>pid</i> to the
+	 * reference trace, if one is being recorded.
+	 */
+	public static void recordReference(int pid, int vpn, boolean write) {
+		if(referenceTrace != null)
+			referenceTrace.append(pid + " " + vpn + (write ? " w\n" : " r\n"));
+	}
+
+	private static void writeReferenceTrace() {
+		OpenFile file = ThreadedKernel.fileSystem.open(traceFileName, true);
+		if(file == null) {
+			Lib.debug(dbgVM, "Could not write reference trace " + traceFileName);
+			return;
+		}
+
+		byte[] bytes = referenceTrace.toString().getBytes();
+		file.write(bytes, 0, bytes.length);
+		file.close();
 	}
 
 	private boolean pagePinned(int ppn) {
@@ -177,9 +1121,14 @@ public class VMKernel extends UserKernel {
 		else return false;
 	}
 
+	/**
+	 * Get a physical page, evicting one if none is free. The page cannot be
+	 * evicted until it is passed to <tt>mapFrame()</tt>.
+	 */
 	public static int getPage() {
 		// Attempt to get a free page
 		int freePage = getFreePage();
+		wakePageDaemon();
 		// If a free page was retrieved
 		if(freePage != -1) {
 			return freePage;
@@ -190,23 +1139,109 @@ public class VMKernel extends UserKernel {
 		return freePage;
 	}
 
+	/**
+	 * Get a physical page as <tt>getPage()</tt> does, but if every frame is
+	 * pinned or on its way in, sleep until a page is unpinned and try again.
+	 */
+	public static int getPageWaiting() {
+		int ppn = getPage();
+		while(ppn == -1) {
+			noFreePageLock.acquire();
+			// set before looking again, so an unpin from here on wakes us
+			waitingForPage = true;
+			ppn = getPage();
+			if(ppn == -1)
+				framesUnpinned.sleep();
+			noFreePageLock.release();
+		}
+		return ppn;
+	}
+
+	/**
+	 * Wake the threads sleeping in <tt>getPageWaiting()</tt>, because a
+	 * page was unpinned.
+	 */
+	public static void wakePageWaiters() {
+		// a thread in getPageWaiting() retries by itself
+		if(!waitingForPage || noFreePageLock.isHeldByCurrentThread())
+			return;
+
+		noFreePageLock.acquire();
+		waitingForPage = false;
+		framesUnpinned.wakeAll();
+		noFreePageLock.release();
+	}
+
+	/**
+	 * Get a free physical page to load a page that has not been asked for
+	 * yet. Nothing is evicted to make room: the result is -1 unless more than
+	 * <tt>VMKernel.freeFramesLow</tt> pages are free.
+	 */
+	public static int getPrefetchPage() {
+		if(getNumFreePages() <= freeFramesLow)
+			return -1;
+		return getFreePage();
+	}
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
 	private static final char dbgVM = 'v';
 
-	public static int[] invPageTablePID;
+	public static VMProcess[] invPageTableProcess;
 	public static TranslationEntry[] invPageTableTE;
+	public static int[] invPageTableRefs; // number of page table entries mapping each frame
+
+	private static HashMap<Integer,LinkedList<Mapping>> sharedFrames; // mappings of shared frames besides the one above, by ppn
 
-	public static int IPTIterator = 0;
+	private static ReplacementPolicy replacementPolicy;
+
+	private static String traceFileName;
+	private static StringBuffer referenceTrace; // "pid vpn r|w" lines, or null if not recording
 
 	private static OpenFile swapfile;	
 
-	private static boolean[] swapPagesFilled;
-	public static HashMap<Integer,LinkedList<TranslationEntry>> swapMapTE; // mapping of PID to translation entry in swap file
+	private static long[] swapSlots; // bitmap of allocated swap slots, 64 per word
+	private static int[] swapSlotRefs; // page table entries (and writes in progress) using each slot
+	private static int swapSlotHint = 0; // no word before this one has a free slot
+	private static int numSwapSlotsUsed = 0, maxSwapSlotsUsed = 0;
+	private static HashMap<Integer,byte[]> pendingSwapWrites; // pages still being written, by swap slot
+	private static int numSwapFileReads = 0, numSwapFileWrites = 0;
+	private static LinkedList<byte[]> pageBuffers = new LinkedList<byte[]>(); // free page-sized buffers for pendingSwapWrites
+	private static int compressedSwapBudget; // bytes of compressed pages kept in memory
+	private static LinkedHashMap<Integer,byte[]> compressedPages; // compressed swap pool, by swap slot, least recently used first
+	private static int compressedBytes = 0;
+	private static byte[] compressBuffer;
+	private static Deflater deflater;
+	private static Inflater inflater;
+	private static int numPagesCompressed = 0, numPagesIncompressible = 0, numPagesSpilled = 0;
+	private static long totalCompressedBytes = 0;
+	private static int numSwapIns = 0, numCompressedSwapHits = 0;
+	private static byte[] swapReadBuffer = new byte[0], swapWriteBuffer = new byte[0]; // used under swapfileReadLock and swapfileWriteLock
+
+	private static Semaphore pageDaemonWakeup; // null if the page daemon is disabled
+	private static boolean pageDaemonIdle; // waiting on pageDaemonWakeup
+	private static int freeFramesLow, freeFramesHigh, pageDaemonBatch;
+	private static int numEvictionsOnFault = 0, numSwapWritesOnFault = 0;
+	private static int numDaemonFrees = 0, numDaemonSwapWrites = 0;
+
+	private static HashMap<String,Integer> textPages; // resident read-only COFF pages, by file, section and page
+	private static String[] textPageKeys; // the textPages key of each frame, or null
+
+	private static int numTextPagesLoaded = 0, numTextPagesShared = 0;
+
+	private static int zeroPage = -1; // the shared zero page, or -1 if pages are zeroed when first touched
+	private static int numZeroPagesMapped = 0, numZeroPagesCopied = 0;
+
+	private static int pageMergeInterval; // ticks between page merger scans, or 0 if there is no page merger
+	private static int numMergeScans = 0, numFramesMerged = 0, numFramesZeroed = 0;
+
+	static int numPagesPrefetched = 0, numPrefetchedPagesUsed = 0; // counted by VMProcess
 
 	public static Lock noFreePageLock;
 
+	private static Condition framesUnpinned; // signalled when a page is unpinned
+
 	public static Lock swapfileWriteLock;
 
 	public static Lock swapfileReadLock;
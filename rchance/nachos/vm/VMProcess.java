@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -14,6 +17,7 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+		maxFaultAround = Config.getInteger("VMProcess.faultAround", 4);
 	}
 
 	/**
@@ -22,6 +26,7 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		super.saveState();
+		VMKernel.recordReferences(getPID(), pageTable);
 	}
 
 	/**
@@ -47,15 +52,154 @@ public class VMProcess extends UserProcess {
 			super.pageTable[i] = new TranslationEntry(i,-1,false,false,false,false);
 		}
 
+		copyOnWrite = new boolean[numPages];
+
+		swapSlotByVpn = new int[numPages];
+		Arrays.fill(swapSlotByVpn, -1);
+
+		return true;
+
+	}
+
+	/**
+	 * Add <i>count</i> pages to the end of this process's address space. The
+	 * pages are zero-filled when they are first touched.
+	 * 
+	 * @param count the number of pages to add.
+	 * @return <tt>true</tt>.
+	 */
+	protected boolean growAddressSpace(int count) {
+		TranslationEntry[] grown = Arrays.copyOf(pageTable, numPages + count);
+		for (int vpn = numPages; vpn < grown.length; vpn++)
+			grown[vpn] = new TranslationEntry(vpn, -1, false, false, false,
+					false);
+
+		pageTable = grown;
+		numPages = grown.length;
+		copyOnWrite = Arrays.copyOf(copyOnWrite, numPages);
+
+		int oldLength = swapSlotByVpn.length;
+		swapSlotByVpn = Arrays.copyOf(swapSlotByVpn, numPages);
+		Arrays.fill(swapSlotByVpn, oldLength, numPages, -1);
+		return true;
+	}
+
+	/**
+	 * Share this process's pages with <i>child</i>, a new process being
+	 * forked from this one. Resident writable pages are mapped into both
+	 * processes read-only and copied on the first write by either. Pages in
+	 * the swap file are shared through their swap slot, and pages never
+	 * loaded are loaded separately by each process.
+	 * 
+	 * @param child the new process.
+	 * @return <tt>true</tt>.
+	 */
+	protected boolean copyAddressSpace(UserProcess child) {
+		VMProcess vmChild = (VMProcess) child;
+
+		TranslationEntry[] childTable = new TranslationEntry[numPages];
+		vmChild.copyOnWrite = new boolean[numPages];
+		vmChild.swapSlotByVpn = new int[numPages];
+		Arrays.fill(vmChild.swapSlotByVpn, -1);
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+
+			if (VMKernel.isZeroPage(entry)) {
+				// both processes copy the zero page when they first write it
+				childTable[vpn] = new TranslationEntry(entry);
+			}
+			else if (entry.valid) {
+				// pages that are read-only in the executable stay so
+				boolean shareWritable = !entry.readOnly || copyOnWrite[vpn];
+
+				TranslationEntry copy = new TranslationEntry(entry);
+				copy.readOnly = true;
+				childTable[vpn] = copy;
+				VMKernel.shareFrame(vmChild, copy);
+
+				if (shareWritable) {
+					entry.readOnly = true;
+					copyOnWrite[vpn] = true;
+					vmChild.copyOnWrite[vpn] = true;
+				}
+			}
+			else if (swapSlotByVpn[vpn] != -1) {
+				// in the swap file; both processes swap in from the same slot
+				childTable[vpn] = new TranslationEntry(entry);
+				VMKernel.shareSwapSlot(swapSlotByVpn[vpn]);
+				vmChild.swapSlotByVpn[vpn] = swapSlotByVpn[vpn];
+				vmChild.copyOnWrite[vpn] = copyOnWrite[vpn];
+			}
+			else {
+				childTable[vpn] = new TranslationEntry(vpn, -1, false,
+						entry.readOnly && !copyOnWrite[vpn], false, false);
+			}
+		}
+
+		vmChild.pageTable = childTable;
+		vmChild.numPages = numPages;
 		return true;
+	}
+
+	/**
+	 * Give this process a private, writable copy of page <i>vpn</i> if it is
+	 * shared copy-on-write.
+	 * 
+	 * @param vpn the virtual page about to be written.
+	 */
+	protected void breakCopyOnWrite(int vpn) {
+		if (VMKernel.isZeroPage(pageTable[vpn])) {
+			VMKernel.copyZeroPage(this, pageTable[vpn]);
+			copyOnWrite[vpn] = false;
+			return;
+		}
+
+		if (!copyOnWrite[vpn])
+			return;
+
+		if (!pageTable[vpn].valid)
+			handlePageFault(Processor.makeAddress(vpn, 0));
 
+		VMKernel.copyOnWrite(this, pageTable[vpn]);
+		pageTable[vpn].readOnly = false;
+		copyOnWrite[vpn] = false;
+	}
+
+	/**
+	 * Test whether page <i>vpn</i> may be written, perhaps after being
+	 * copied.
+	 */
+	boolean isWritable(int vpn) {
+		return !pageTable[vpn].readOnly || copyOnWrite[vpn];
+	}
+
+	/**
+	 * Make page <i>vpn</i> copy-on-write, if it may be written, because its
+	 * frame is now shared. Called by <tt>VMKernel</tt> when it merges frames
+	 * with the same contents.
+	 */
+	void shareWritablePage(int vpn) {
+		if (isWritable(vpn)) {
+			pageTable[vpn].readOnly = true;
+			copyOnWrite[vpn] = true;
+		}
 	}
 
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		// resident pages may still be mapped by processes forked from this one
+		for (int vpn = 0; vpn < pageTable.length; vpn++) {
+			if (VMKernel.isZeroPage(pageTable[vpn]))
+				continue;
+			if (pageTable[vpn].valid)
+				VMKernel.releaseFrame(this, pageTable[vpn]);
+			else if (swapSlotByVpn[vpn] != -1)
+				VMKernel.releaseSwapSlot(swapSlotByVpn[vpn]);
+		}
+		Arrays.fill(swapSlotByVpn, -1);
 	}
 
 	/**
@@ -72,6 +216,14 @@ public class VMProcess extends UserProcess {
 		case Processor.exceptionPageFault:
 			handlePageFault(processor.readRegister(Processor.regBadVAddr));
 			break;
+		case Processor.exceptionReadOnly:
+			int vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			if (copyOnWrite[vpn] || VMKernel.isZeroPage(pageTable[vpn]))
+				breakCopyOnWrite(vpn);
+			else
+				super.handleException(cause);
+			break;
 		default:
 			super.handleException(cause);
 			break;
@@ -79,7 +231,159 @@ public class VMProcess extends UserProcess {
 	}
 
 	private void handlePageFault(int vaddr) {
-		preparePage(vaddr);	
+		int reason = KThread.setBlockReason(ThreadStats.blockedPageFault);
+		int vpn = Processor.pageFromAddress(vaddr);
+		// before the trace clears the reference bits
+		adaptFaultAround();
+		VMKernel.recordReferences(getPID(), pageTable);
+		VMKernel.recordReference(getPID(), vpn, false);
+		int slot = swapSlotByVpn[vpn];
+		preparePage(vaddr);
+		if(maxFaultAround > 0)
+			faultAround(vpn, slot);
+		// the page may have been evicted while the prefetch blocked, or its
+		// read found stale; kernel callers use its ppn as soon as we return
+		while(!pageTable[vpn].valid)
+			preparePage(vaddr);
+		KThread.setBlockReason(reason);
+	}
+
+	/**
+	 * Resize the fault-around window according to how many of the pages
+	 * prefetched at earlier faults have been referenced since: double it if
+	 * at least half were, and halve it otherwise.
+	 */
+	private void adaptFaultAround() {
+		if(prefetchedPages.isEmpty())
+			return;
+
+		int used = 0;
+		for(int vpn : prefetchedPages) {
+			if(pageTable[vpn].valid && pageTable[vpn].used)
+				used++;
+		}
+		VMKernel.numPrefetchedPagesUsed += used;
+
+		if(2*used >= prefetchedPages.size())
+			faultAroundWindow = Math.min(2*faultAroundWindow, maxFaultAround);
+		else
+			faultAroundWindow = Math.max(faultAroundWindow/2, 1);
+
+		prefetchedPages.clear();
+	}
+
+	/**
+	 * Load the pages after <i>vpn</i>, which was just faulted in, that come
+	 * from the same place: the same executable section, or the swap slots
+	 * following <i>slot</i>. At most <tt>faultAroundWindow</tt> pages are
+	 * loaded, and only into frames that are already free. The pages are
+	 * marked unused, so that <tt>adaptFaultAround()</tt> can tell whether they
+	 * were worth loading.
+	 *
+	 * @param vpn the page that faulted.
+	 * @param slot the swap slot <i>vpn</i> was read from, or -1.
+	 */
+	private void faultAround(int vpn, int slot) {
+		if(slot != -1) {
+			swapAround(vpn, slot);
+			return;
+		}
+
+		for(int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if(vpn >= section.getFirstVPN()
+					&& vpn < section.getFirstVPN() + section.getLength()) {
+				// zero-filled pages are not worth prefetching
+				if(section.isInitialzed())
+					loadAround(vpn, s, section);
+				return;
+			}
+		}
+	}
+
+	private void loadAround(int vpn, int s, CoffSection section) {
+		for(int d = 1; d <= faultAroundWindow && vpn + d < numPages; d++) {
+			int next = vpn + d;
+			TranslationEntry entry = pageTable[next];
+			if(entry.valid)
+				continue;
+
+			int i = next - section.getFirstVPN();
+			if(i >= section.getLength() || swapSlotByVpn[next] != -1)
+				return;
+
+			if(!mapTextPage(next)) {
+				int ppn = VMKernel.getPrefetchPage();
+				if(ppn == -1)
+					return;
+
+				section.loadPage(i, ppn);
+				// the page was faulted in, or even evicted, meanwhile
+				if(entry.valid || swapSlotByVpn[next] != -1) {
+					VMKernel.freeFrame(ppn);
+					continue;
+				}
+				entry.ppn = ppn;
+				if(section.isReadOnly()) entry.readOnly = true;
+				entry.valid = true;
+				entry.dirty = false;
+				VMKernel.mapFrame(ppn, this, entry);
+				if(section.isReadOnly()) VMKernel.cacheTextPage(coffName, s, i, ppn);
+			}
+
+			prefetched(next);
+		}
+	}
+
+	/**
+	 * Prefetch the pages after <i>vpn</i> that are in the swap slots after
+	 * <i>slot</i>, with a single read.
+	 */
+	private void swapAround(int vpn, int slot) {
+		int[] ppns = new int[faultAroundWindow];
+		int count = 0;
+
+		while(count < faultAroundWindow && vpn + count + 1 < numPages
+				&& swapSlotByVpn[vpn + count + 1] == slot + count + 1) {
+			int ppn = VMKernel.getPrefetchPage();
+			if(ppn == -1)
+				break;
+
+			// keep the slot from being reused while it is read
+			VMKernel.shareSwapSlot(slot + count + 1);
+			ppns[count++] = ppn;
+		}
+
+		if(count == 0)
+			return;
+
+		VMKernel.swapIn(slot + 1, ppns, count);
+
+		for(int j = 0; j < count; j++) {
+			int next = vpn + j + 1, nextSlot = slot + j + 1;
+			TranslationEntry entry = pageTable[next];
+
+			VMKernel.releaseSwapSlot(nextSlot);
+			// the page was faulted in, or even evicted, meanwhile
+			if(entry.valid || swapSlotByVpn[next] != nextSlot) {
+				VMKernel.freeFrame(ppns[j]);
+				continue;
+			}
+			swapSlotByVpn[next] = -1;
+			VMKernel.releaseSwapSlot(nextSlot);
+			entry.ppn = ppns[j];
+			entry.valid = true;
+			entry.dirty = true;
+			VMKernel.mapFrame(ppns[j], this, entry);
+
+			prefetched(next);
+		}
+	}
+
+	private void prefetched(int vpn) {
+		pageTable[vpn].used = false;
+		prefetchedPages.add(vpn);
+		VMKernel.numPagesPrefetched++;
 	}
 
 	private void preparePage(int vaddr) {
@@ -88,17 +392,18 @@ public class VMProcess extends UserProcess {
 
 		int ppn = 0;
 
+		// read-only pages of the executable may already be in memory
+		if(mapTextPage(Processor.pageFromAddress(vaddr)))
+			return;
+
+		// so may a page that has never been written: it reads as zeros
+		if(mapZeroPage(Processor.pageFromAddress(vaddr)))
+			return;
+
 		// Get physical page from kernel
-		ppn = VMKernel.getPage();
+		ppn = VMKernel.getPageWaiting();
 	
-		while(ppn == -1) {
-			VMKernel.waitingForPage = true;	
-			waitForPage.sleep();
-			ppn = VMKernel.getPage();
-				
-		}
-	
-		if(!pageTable[Processor.pageFromAddress(vaddr)].dirty){// || pageTable[vpn].readOnly) {
+		if(swapSlotByVpn[Processor.pageFromAddress(vaddr)] == -1){// || pageTable[vpn].readOnly) {
 		for(int s = 0; s < super.coff.getNumSections(); s++) {
 	
 			CoffSection section = super.coff.getSection(s);
@@ -113,14 +418,20 @@ public class VMProcess extends UserProcess {
 						section.loadPage(i,ppn);
 						// update kernel inverted page table
 					
+					// another thread faulted the page in while we loaded it,
+					// and perhaps wrote it and had it evicted to swap
+					if(super.pageTable[vpn].valid || swapSlotByVpn[vpn] != -1) {
+						VMKernel.freeFrame(ppn);
+						return;
+					}
 					super.pageTable[vpn].ppn = ppn;
 					if(section.isReadOnly()) super.pageTable[vpn].readOnly = true;
 					super.pageTable[vpn].valid = true;
 					super.pageTable[vpn].used = true;
 					super.pageTable[vpn].dirty = false;
 
-					VMKernel.invPageTablePID[ppn] = super.getPID();
-					VMKernel.invPageTableTE[ppn] = super.pageTable[vpn];
+					VMKernel.mapFrame(ppn, this, super.pageTable[vpn]);
+					if(section.isReadOnly()) VMKernel.cacheTextPage(coffName, s, i, ppn);
 					return;
 				}
 
@@ -130,33 +441,101 @@ public class VMProcess extends UserProcess {
 		}
 		else { // load from swapFile
 				
-			VMKernel.swapIn(getPID(),Processor.pageFromAddress(vaddr),ppn);
+			int slot = swapSlotByVpn[Processor.pageFromAddress(vaddr)];
+			// keep the slot from being reused while it is read
+			VMKernel.shareSwapSlot(slot);
+			VMKernel.swapIn(slot,ppn);
+			VMKernel.releaseSwapSlot(slot);
+			// the page was faulted in, or even evicted, meanwhile
+			if(super.pageTable[Processor.pageFromAddress(vaddr)].valid
+					|| swapSlotByVpn[Processor.pageFromAddress(vaddr)] != slot) {
+				VMKernel.freeFrame(ppn);
+				return;
+			}
+			// the page is written to a new slot if it is evicted again
+			swapSlotByVpn[Processor.pageFromAddress(vaddr)] = -1;
+			VMKernel.releaseSwapSlot(slot);
 			super.pageTable[Processor.pageFromAddress(vaddr)].ppn = ppn;
 			super.pageTable[Processor.pageFromAddress(vaddr)].valid = true;
 			super.pageTable[Processor.pageFromAddress(vaddr)].used = true;
 			super.pageTable[Processor.pageFromAddress(vaddr)].dirty = true;
-			VMKernel.invPageTablePID[ppn] = super.getPID();
-			VMKernel.invPageTableTE[ppn] = super.pageTable[Processor.pageFromAddress(vaddr)];
+			VMKernel.mapFrame(ppn, this, super.pageTable[Processor.pageFromAddress(vaddr)]);
 			return;
 		}	
 
-		if(super.pageTable[Processor.pageFromAddress(vaddr)].used) {
-			VMKernel.swapIn(getPID(), Processor.pageFromAddress(vaddr), ppn);
+		if(super.pageTable[Processor.pageFromAddress(vaddr)].valid) {
+			VMKernel.freeFrame(ppn);
+			return;
 		}
-		else {
 
-			for(int j = 0; j < pageSize; j++) {
-				memory[ppn*pageSize+j] = 0;
-			}
-		}
+		// a clean page outside the executable was never written; zero it
+		Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
 		super.pageTable[Processor.pageFromAddress(vaddr)].valid = true;
 		super.pageTable[Processor.pageFromAddress(vaddr)].used = true;
 		super.pageTable[Processor.pageFromAddress(vaddr)].dirty = false;
 		super.pageTable[Processor.pageFromAddress(vaddr)].ppn = ppn;
-		VMKernel.invPageTablePID[ppn] = super.getPID();
-		VMKernel.invPageTableTE[ppn] = super.pageTable[Processor.pageFromAddress(vaddr)];
+		VMKernel.mapFrame(ppn, this, super.pageTable[Processor.pageFromAddress(vaddr)]);
 	}
 
+	/**
+	 * Map virtual page <i>vpn</i> to a copy of its read-only executable page
+	 * that another process has already loaded.
+	 *
+	 * @return <tt>true</tt> if the page was mapped.
+	 */
+	private boolean mapTextPage(int vpn) {
+		if(pageTable[vpn].valid || swapSlotByVpn[vpn] != -1)
+			return false;
+
+		for(int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			int i = vpn - section.getFirstVPN();
+			if(i >= 0 && i < section.getLength()) {
+				return section.isReadOnly()
+					&& VMKernel.mapTextPage(coffName, s, i, this, pageTable[vpn]);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Map virtual page <i>vpn</i> to the shared zero page, if it is a stack
+	 * page or lies in an uninitialized section, and has never been written.
+	 *
+	 * @return <tt>true</tt> if the page was mapped.
+	 */
+	private boolean mapZeroPage(int vpn) {
+		if(pageTable[vpn].valid || swapSlotByVpn[vpn] != -1)
+			return false;
+
+		for(int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if(vpn >= section.getFirstVPN()
+					&& vpn < section.getFirstVPN() + section.getLength()
+					&& section.isInitialzed())
+				return false;
+		}
+		return VMKernel.mapZeroPage(pageTable[vpn]);
+	}
+
+	/** The most pages to prefetch at a fault, from VMProcess.faultAround. */
+	private int maxFaultAround;
+
+	/** The number of pages to prefetch at the next fault. */
+	private int faultAroundWindow = 1;
+
+	/** Pages prefetched since the window was last resized. */
+	private LinkedList<Integer> prefetchedPages = new LinkedList<Integer>();
+
+	/** Pages shared with a parent or child process until either writes. */
+	private boolean[] copyOnWrite;
+
+	/**
+	 * The swap slot holding each virtual page, or -1 if the page is not in
+	 * the swap file. Set by <tt>VMKernel.evictPage()</tt>.
+	 */
+	int[] swapSlotByVpn;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -0,0 +1,91 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Each frame records when its page was last seen to be
+ * used. The hand passes over pages used since it last passed, noting the time.
+ * A page unused for longer than <i>tau</i> has left its process's working set;
+ * the hand evicts the first such page that is clean. If the hand goes all the
+ * way around without finding one, it evicts the oldest dirty page outside the
+ * working set, or failing that the oldest page of all.
+ *
+ * <p>
+ * Classic WSClock schedules writes of the dirty pages it passes and keeps
+ * going. Here writing a page out is the eviction itself, so passing over
+ * dirty pages only spares the swap write when a clean page is available.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy, with the working set window given by
+	 * <tt>WSClockPolicy.tau</tt>, in ticks (default 20000).
+	 */
+	public WSClockPolicy() {
+		this(Config.getInteger("WSClockPolicy.tau", 20000));
+	}
+
+	/**
+	 * Allocate a new WSClock policy.
+	 *
+	 * @param tau the working set window, in the units of
+	 * <tt>Frames.getTime()</tt>.
+	 */
+	public WSClockPolicy(long tau) {
+		Lib.assertTrue(tau > 0);
+
+		this.tau = tau;
+	}
+
+	public void initialize(Frames frames) {
+		super.initialize(frames);
+
+		lastUse = new long[frames.getNumFrames()];
+	}
+
+	public void pageMapped(int ppn, long page) {
+		lastUse[ppn] = frames.getTime();
+	}
+
+	public void frameFreed(int ppn) {
+	}
+
+	public int chooseVictim() {
+		int numFrames = frames.getNumFrames();
+		long now = frames.getTime();
+
+		int oldestDirty = -1, oldest = -1;
+
+		for (int scanned = 0; scanned < numFrames; scanned++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (!frames.isEvictable(ppn))
+				continue;
+
+			if (frames.isReferenced(ppn)) {
+				frames.clearReferenced(ppn);
+				lastUse[ppn] = now;
+			}
+			else if (now - lastUse[ppn] > tau) {
+				if (!frames.isDirty(ppn))
+					return ppn;
+				if (oldestDirty == -1 || lastUse[ppn] < lastUse[oldestDirty])
+					oldestDirty = ppn;
+			}
+
+			if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+				oldest = ppn;
+		}
+
+		int victim = (oldestDirty != -1) ? oldestDirty : oldest;
+		if (victim != -1)
+			hand = (victim + 1) % numFrames;
+		return victim;
+	}
+
+	private long tau;
+
+	private long[] lastUse;
+
+	private int hand = 0;
+}